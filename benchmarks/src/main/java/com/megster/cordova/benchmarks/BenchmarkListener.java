@@ -0,0 +1,52 @@
+package com.megster.cordova.benchmarks;
+
+import com.megster.cordova.BluetoothSerialService;
+
+import java.util.List;
+
+/**
+ * Ignores every event, benchmarks override the ones they measure.
+ */
+class BenchmarkListener implements BluetoothSerialService.Listener {
+    public void onRead(String address, byte[] data, int length) {
+    }
+
+    public void onStateChange(String address, int state) {
+    }
+
+    public void onConnectionError(String address, String message) {
+    }
+
+    public void onReconnecting(String address, int attempt, long delay) {
+    }
+
+    public void onWrite(String address, int lane, List<Object> tokens, int queued, int bytes, long waitNanos) {
+    }
+
+    public void onWriteFailed(String address, Object token) {
+    }
+
+    public void onDiscoveryStarted() {
+    }
+
+    public void onDiscoveryFinished() {
+    }
+
+    public void onDeviceFound(String name, String address, int deviceClass, int rssi) {
+    }
+
+    public void onDeviceBonded(String name, String address) {
+    }
+
+    public void onBondStateChanged(String name, String address, int deviceClass, int bondState) {
+    }
+
+    public void onAdapterStateChanged(int state) {
+    }
+
+    public void onHeartbeat(String address, long rttNanos) {
+    }
+
+    public void onLinkTimeout(String address, long idleMillis) {
+    }
+}
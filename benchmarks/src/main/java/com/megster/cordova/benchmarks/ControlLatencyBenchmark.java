@@ -0,0 +1,108 @@
+package com.megster.cordova.benchmarks;
+
+import android.content.Context;
+import com.megster.cordova.BluetoothSerialService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How long a control priority write waits behind a large bulk write, for
+ * different bulk chunk sizes. The in-memory device reads slowly, about
+ * 4 MB/s, so the bulk write takes as long as it would on a fast link. Each
+ * operation queues the bulk write, then a control write, and ends when the
+ * control write is sent; the bulk write finishes outside the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ControlLatencyBenchmark {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int BULK_SIZE = 64 * 1024;
+    private static final int PIPE_SIZE = 4096;
+
+    // 1 MB is larger than the bulk write, so it is not chunked
+    @Param({"512", "4096", "1048576"})
+    public int chunkSize;
+
+    private BluetoothSerialService service;
+    private PipedTransport device;
+    private final AtomicLong bulkSent = new AtomicLong();
+    private final AtomicLong controlSent = new AtomicLong();
+    private long operations;
+    private final byte[] bulk = new byte[BULK_SIZE];
+    private final byte[] control = new byte[] { 'S', 'T', 'O', 'P', '\n' };
+
+    @Setup
+    public void setup() throws Exception {
+        service = new BluetoothSerialService(new Context(), new BenchmarkListener() {
+            @Override
+            public void onWrite(String address, int lane, List<Object> tokens, int queued, int bytes, long waitNanos) {
+                if (lane == BluetoothSerialService.LANE_CONTROL) {
+                    controlSent.addAndGet(tokens.size());
+                } else if (tokens.contains("bulk")) {
+                    bulkSent.incrementAndGet();
+                }
+            }
+        });
+        service.setWriteChunkSize(chunkSize);
+
+        PipedTransport.Factory factory = new PipedTransport.Factory(ADDRESS, PIPE_SIZE);
+        service.connect(factory, null);
+        device = factory.accept(5, TimeUnit.SECONDS);
+        while (service.getState(ADDRESS) != BluetoothSerialService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+
+        // a pipe full every millisecond
+        final InputStream in = device.getInputStream();
+        Thread drain = new Thread("Drain") {
+            public void run() {
+                byte[] buffer = new byte[PIPE_SIZE];
+                try {
+                    while (in.read(buffer) >= 0) {
+                        Thread.sleep(1);
+                    }
+                } catch (IOException e) {
+                    // closed
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }
+        };
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        service.stop();
+        device.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void awaitBulk() {
+        while (bulkSent.get() < operations) {
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    public long controlBehindBulk() {
+        operations++;
+        service.write(ADDRESS, bulk, "bulk", BluetoothSerialService.LANE_BULK);
+        service.write(ADDRESS, control, null, BluetoothSerialService.LANE_CONTROL);
+        while (controlSent.get() < operations) {
+            Thread.yield();
+        }
+        return operations;
+    }
+}
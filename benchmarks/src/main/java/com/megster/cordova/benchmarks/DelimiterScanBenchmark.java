@@ -0,0 +1,81 @@
+package com.megster.cordova.benchmarks;
+
+import com.megster.cordova.ByteRingBuffer;
+import com.megster.cordova.DelimiterMatcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the end of a record that arrives in 1 KB reads, searching after
+ * every read as subscribe does. The incremental search resumes where it
+ * stopped, the rescan baseline searches from the start each time as the
+ * plugin used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DelimiterScanBenchmark {
+
+    private static final int READ_SIZE = 1024;
+
+    @Param({"16", "1024", "65536"})
+    public int recordSize;
+
+    private byte[] record;
+    private ByteRingBuffer buffer;
+    private DelimiterMatcher matcher;
+    private DelimiterMatcher alternatives;
+    private byte[] delimiter;
+
+    @Setup
+    public void setup() {
+        record = new byte[recordSize];
+        for (int i = 0; i < record.length - 2; i++) {
+            record[i] = (byte) ('a' + i % 26);
+        }
+        record[record.length - 2] = '\r';
+        record[record.length - 1] = '\n';
+        delimiter = new byte[] { '\r', '\n' };
+        matcher = new DelimiterMatcher(delimiter);
+        alternatives = DelimiterMatcher.forStrings("\r\n", "\n", "\u0004");
+        buffer = new ByteRingBuffer(READ_SIZE, 1024 * 1024, ByteRingBuffer.OVERFLOW_DROP_OLDEST);
+    }
+
+    @Benchmark
+    public int incremental() {
+        return receiveRecord(matcher);
+    }
+
+    @Benchmark
+    public int incrementalAlternatives() {
+        return receiveRecord(alternatives);
+    }
+
+    @Benchmark
+    public int rescan() {
+        int found = -1;
+        for (int offset = 0; offset < record.length; offset += READ_SIZE) {
+            buffer.append(record, offset, Math.min(READ_SIZE, record.length - offset));
+            int index = buffer.indexOf(delimiter);
+            if (index > -1) {
+                found = index + delimiter.length;
+            }
+        }
+        buffer.skip(found);
+        return found;
+    }
+
+    private int receiveRecord(DelimiterMatcher m) {
+        int found = -1;
+        for (int offset = 0; offset < record.length; offset += READ_SIZE) {
+            buffer.append(record, offset, Math.min(READ_SIZE, record.length - offset));
+            found = buffer.indexAfter(m);
+        }
+        buffer.skip(found);
+        return found;
+    }
+}
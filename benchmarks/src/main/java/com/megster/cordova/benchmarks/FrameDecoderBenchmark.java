@@ -0,0 +1,108 @@
+package com.megster.cordova.benchmarks;
+
+import com.megster.cordova.FrameDecoder;
+import com.megster.cordova.FrameDecoders;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a stream of 64 byte frames delivered in 1 KB reads, with each
+ * of the framing types subscribe supports.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    private static final int READ_SIZE = 1024;
+    private static final int FRAME_SIZE = 64;
+    private static final int FRAMES = 256;
+
+    @Param({"delimiter", "lengthPrefix", "cobs", "slip", "fixed"})
+    public String type;
+
+    private FrameDecoder decoder;
+    private byte[] stream;
+
+    @Setup
+    public void setup() throws Exception {
+        JSONObject options = new JSONObject();
+        options.put("type", type);
+        options.put("delimiter", "\n");
+        options.put("size", FRAME_SIZE);
+        decoder = FrameDecoders.fromOptions(options);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int f = 0; f < FRAMES; f++) {
+            byte[] payload = new byte[FRAME_SIZE];
+            for (int i = 0; i < payload.length; i++) {
+                // binary payload with some zero and SLIP END bytes, no newlines
+                payload[i] = (byte) (i % 16 == 0 ? 0 : i % 16 == 8 ? 0xC0 : 'a' + (f + i) % 26);
+            }
+            encode(payload, out);
+        }
+        stream = out.toByteArray();
+    }
+
+    @Benchmark
+    public void decode(final Blackhole bh) {
+        FrameDecoder.Listener listener = new FrameDecoder.Listener() {
+            public void onFrame(byte[] frame) {
+                bh.consume(frame);
+            }
+        };
+        for (int offset = 0; offset < stream.length; offset += READ_SIZE) {
+            decoder.decode(stream, offset, Math.min(READ_SIZE, stream.length - offset), listener);
+        }
+    }
+
+    private void encode(byte[] payload, ByteArrayOutputStream out) {
+        if (type.equals("delimiter")) {
+            for (byte b : payload) {
+                out.write(b == '\n' ? ' ' : b);
+            }
+            out.write('\n');
+        } else if (type.equals("lengthPrefix")) {
+            out.write(payload.length >> 8);
+            out.write(payload.length);
+            out.write(payload, 0, payload.length);
+        } else if (type.equals("cobs")) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            for (byte b : payload) {
+                if (b == 0) {
+                    out.write(block.size() + 1);
+                    out.write(block.toByteArray(), 0, block.size());
+                    block.reset();
+                } else {
+                    block.write(b);
+                }
+            }
+            out.write(block.size() + 1);
+            out.write(block.toByteArray(), 0, block.size());
+            out.write(0);
+        } else if (type.equals("slip")) {
+            for (byte b : payload) {
+                int c = b & 0xFF;
+                if (c == 0xC0) {
+                    out.write(0xDB);
+                    out.write(0xDC);
+                } else if (c == 0xDB) {
+                    out.write(0xDB);
+                    out.write(0xDD);
+                } else {
+                    out.write(c);
+                }
+            }
+            out.write(0xC0);
+        } else {
+            out.write(payload, 0, payload.length);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.megster.cordova.benchmarks;
+
+import com.megster.cordova.SerialTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One end of an in-memory connection, for running the service against a
+ * simulated device in the same process. The Factory creates the service
+ * end of a new connection on each connect, and hands the device end to
+ * whoever calls accept().
+ *
+ * Each direction is a bounded pipe: a writer blocks while the pipe is full,
+ * as RFCOMM flow control blocks a writer on a real link. java.io's piped
+ * streams are not used because they break when the thread that last wrote
+ * to them exits.
+ */
+public class PipedTransport implements SerialTransport {
+
+    public static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    private final String name;
+    private final Pipe in;
+    private final Pipe out;
+
+    private PipedTransport(String name, Pipe in, Pipe out) {
+        this.name = name;
+        this.in = in;
+        this.out = out;
+    }
+
+    public void connect() throws IOException {
+        // connected when created
+    }
+
+    public InputStream getInputStream() {
+        return in.input;
+    }
+
+    public OutputStream getOutputStream() {
+        return out.output;
+    }
+
+    /**
+     * Close both directions. The other end reads what was already written,
+     * then end of stream.
+     */
+    public void close() {
+        in.close();
+        out.close();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static class Factory implements SerialTransport.Factory {
+        private final String address;
+        private final int pipeSize;
+        private final BlockingQueue<PipedTransport> devices = new LinkedBlockingQueue<PipedTransport>();
+        private volatile boolean refuse;
+
+        public Factory(String address) {
+            this(address, DEFAULT_PIPE_SIZE);
+        }
+
+        public Factory(String address, int pipeSize) {
+            this.address = address;
+            this.pipeSize = pipeSize;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public SerialTransport create() throws IOException {
+            if (refuse) {
+                throw new IOException("Connection refused");
+            }
+            Pipe toDevice = new Pipe(pipeSize);
+            Pipe fromDevice = new Pipe(pipeSize);
+            devices.offer(new PipedTransport(address + " (device)", toDevice, fromDevice));
+            return new PipedTransport(address, fromDevice, toDevice);
+        }
+
+        /**
+         * Make connection attempts fail, to simulate a device out of range.
+         */
+        public void setRefuseConnections(boolean refuse) {
+            this.refuse = refuse;
+        }
+
+        /**
+         * Wait for the service to connect and return the device end of the connection.
+         *
+         * @return The device end, or null if the timeout elapsed.
+         */
+        public PipedTransport accept(long timeout, TimeUnit unit) throws InterruptedException {
+            return devices.poll(timeout, unit);
+        }
+    }
+
+    /**
+     * A bounded byte pipe. Reads block until data is written or the pipe is
+     * closed; writes block while it is full and fail once it is closed.
+     */
+    private static class Pipe {
+        private final byte[] buffer;
+        private int head;
+        private int size;
+        private boolean closed;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return size;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (size == 0) {
+                if (closed) {
+                    return -1;
+                }
+                await();
+            }
+            int count = Math.min(len, size);
+            int first = Math.min(count, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, count - first);
+            head = (head + count) % buffer.length;
+            size -= count;
+            notifyAll();
+            return count;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+                if (size == buffer.length) {
+                    await();
+                    continue;
+                }
+                int tail = (head + size) % buffer.length;
+                int count = Math.min(len, Math.min(buffer.length - size, buffer.length - tail));
+                System.arraycopy(b, off, buffer, tail, count);
+                size += count;
+                off += count;
+                len -= count;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.megster.cordova.benchmarks;
+
+import com.megster.cordova.ByteRingBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending received chunks to the receive buffer and consuming them again,
+ * as read() does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBufferBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"16", "256", "1024"})
+    public int chunkSize;
+
+    private ByteRingBuffer buffer;
+    private byte[] chunk;
+
+    @Setup
+    public void setup() {
+        buffer = new ByteRingBuffer();
+        chunk = new byte[chunkSize];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) ('a' + i % 26);
+        }
+        // leave some data behind so the head moves around the array
+        buffer.append(chunk, 0, chunkSize / 2);
+    }
+
+    @Benchmark
+    public byte[] appendRead() {
+        buffer.append(chunk);
+        return buffer.read(chunkSize);
+    }
+
+    @Benchmark
+    public String appendReadString() {
+        buffer.append(chunk);
+        return buffer.readString(chunkSize, UTF_8);
+    }
+
+    @Benchmark
+    public void appendSkip(Blackhole bh) {
+        bh.consume(buffer.append(chunk));
+        buffer.skip(chunkSize);
+    }
+}
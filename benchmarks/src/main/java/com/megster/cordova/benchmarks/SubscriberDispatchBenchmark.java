@@ -0,0 +1,72 @@
+package com.megster.cordova.benchmarks;
+
+import com.megster.cordova.DelimiterMatcher;
+import com.megster.cordova.DeviceSession;
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivering received lines to a subscriber, one callback per line or
+ * batched into arrays, from the reader thread's onRead call to the
+ * PluginResult sent across the bridge.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriberDispatchBenchmark {
+
+    private static final int READ_SIZE = 1024;
+
+    @Param({"24", "200"})
+    public int lineLength;
+
+    @Param({"0", "32"})
+    public int maxFrames;
+
+    private ScheduledExecutorService scheduler;
+    private DeviceSession session;
+    private byte[] read;
+
+    @Setup
+    public void setup(final Blackhole bh) throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        session = new DeviceSession("00:11:22:33:44:55", scheduler);
+
+        JSONObject options = null;
+        if (maxFrames > 0) {
+            options = new JSONObject();
+            options.put("maxFrames", maxFrames);
+        }
+        session.subscribe(DelimiterMatcher.forStrings("\n"), options, null, new CallbackContext("subscribe") {
+            @Override
+            public void sendPluginResult(PluginResult result) {
+                bh.consume(result);
+            }
+        });
+
+        read = new byte[READ_SIZE];
+        for (int i = 0; i < read.length; i++) {
+            read[i] = (byte) (i % lineLength == lineLength - 1 ? '\n' : 'a' + i % 26);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public void onRead() {
+        session.onRead(read, read.length);
+    }
+}
@@ -0,0 +1,100 @@
+package com.megster.cordova.benchmarks;
+
+import android.content.Context;
+import com.megster.cordova.BluetoothSerialService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sending bursts of small writes through the service's write queue and
+ * writer thread to an in-memory device that discards the data, with and without
+ * write coalescing. Each operation writes a burst and waits until every
+ * write in it has been reported as sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteCoalescingBenchmark {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int BURST = 64;
+
+    @Param({"16", "128"})
+    public int writeSize;
+
+    @Param({"0", "1"})
+    public int coalesceWindow;
+
+    private BluetoothSerialService service;
+    private PipedTransport device;
+    private final AtomicLong written = new AtomicLong();
+    private long sent;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws Exception {
+        service = new BluetoothSerialService(new Context(), new BenchmarkListener() {
+            @Override
+            public void onWrite(String address, int lane, List<Object> tokens, int queued, int bytes, long waitNanos) {
+                written.addAndGet(tokens.size());
+            }
+        });
+        service.setWriteQueueSize(BURST * 2);
+        service.setWriteCoalescing(coalesceWindow, 512);
+
+        PipedTransport.Factory factory = new PipedTransport.Factory(ADDRESS);
+        service.connect(factory, null);
+        device = factory.accept(5, TimeUnit.SECONDS);
+        while (service.getState(ADDRESS) != BluetoothSerialService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+
+        // the device reads and discards everything, it never sends anything
+        final InputStream in = device.getInputStream();
+        Thread drain = new Thread("Drain") {
+            public void run() {
+                byte[] buffer = new byte[4096];
+                try {
+                    while (in.read(buffer) >= 0) {
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        drain.setDaemon(true);
+        drain.start();
+
+        data = new byte[writeSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        service.stop();
+        device.close();
+    }
+
+    @Benchmark
+    public long burst() {
+        for (int i = 0; i < BURST; i++) {
+            while (!service.write(ADDRESS, data, null)) {
+                Thread.yield();
+            }
+        }
+        sent += BURST;
+        // coalescing only waits for the window when there is nothing else to send
+        service.flush(ADDRESS);
+        while (written.get() < sent) {
+            Thread.yield();
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,254 @@
+package com.megster.cordova.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A serial device on a TCP port, for connecting to with
+ * bluetoothSerial.connect("tcp://host:port"). Like a serial device it
+ * accepts one connection at a time; a new connection replaces the old one.
+ * While connected it sends frames following its TrafficPattern, and reads
+ * and discards what it is sent, or with echo on, sends back each line it
+ * receives as a response. The frame sequence continues across
+ * connections, so frames lost when a connection drops show up as a gap.
+ *
+ *     java -cp target/benchmarks.jar com.megster.cordova.simulator.DeviceSimulator [port] [pattern]
+ */
+public class DeviceSimulator {
+
+    private static final int READ_CHUNK = 64;
+
+    private final ServerSocket serverSocket;
+    private final TrafficPattern pattern;
+    private final Random random = new Random();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private volatile Socket current;
+    private volatile boolean echo;
+    private volatile boolean stopped;
+    private volatile boolean paused;
+
+    /**
+     * @param port 0 for any free port
+     */
+    public DeviceSimulator(InetAddress bindAddress, int port, TrafficPattern pattern) throws IOException {
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(bindAddress, port));
+        this.pattern = pattern;
+    }
+
+    /**
+     * Send back every line received, in between the frames.
+     */
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    /**
+     * Stop sending frames and dropping the connection, so everything sent so
+     * far can be received. Lines are still echoed.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public TrafficPattern getPattern() {
+        return pattern;
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Connections dropped on purpose by the pattern.
+     */
+    public long getDisconnects() {
+        return disconnects.get();
+    }
+
+    public void start() {
+        Thread acceptThread = new Thread("SimulatorAccept") {
+            public void run() {
+                while (!stopped) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        closeQuietly(current);
+                        current = socket;
+                        connections.incrementAndGet();
+                        startConnection(socket);
+                    } catch (IOException e) {
+                        if (!stopped) {
+                            System.err.println("accept failed: " + e);
+                        }
+                    }
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        closeQuietly(current);
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // stopping anyway
+        }
+    }
+
+    private void startConnection(final Socket socket) throws IOException {
+        final InputStream in = socket.getInputStream();
+        final OutputStream out = socket.getOutputStream();
+
+        Thread sender = new Thread("SimulatorSend") {
+            public void run() {
+                send(socket, out);
+            }
+        };
+        Thread receiver = new Thread("SimulatorReceive") {
+            public void run() {
+                receive(socket, in, out);
+            }
+        };
+        sender.setDaemon(true);
+        receiver.setDaemon(true);
+        sender.start();
+        receiver.start();
+    }
+
+    private void send(Socket socket, OutputStream out) {
+        long burstNanos = TimeUnit.SECONDS.toNanos(pattern.burstSize) / pattern.framesPerSecond;
+        long next = System.nanoTime();
+        long disconnectAt = pattern.disconnectInterval > 0
+                ? next + TimeUnit.MILLISECONDS.toNanos(exponential(pattern.disconnectInterval))
+                : Long.MAX_VALUE;
+
+        try {
+            while (!socket.isClosed()) {
+                if (paused) {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                    continue;
+                }
+                long now = System.nanoTime();
+                if (now >= disconnectAt) {
+                    disconnects.incrementAndGet();
+                    break;
+                }
+                if (now < next) {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(next, disconnectAt) - now);
+                    continue;
+                }
+                for (int i = 0; i < pattern.burstSize; i++) {
+                    synchronized (out) {
+                        out.write(Frames.encode(sequence.getAndIncrement(), System.nanoTime(), pattern.frameSize));
+                    }
+                    framesSent.incrementAndGet();
+                }
+                next += burstNanos;
+            }
+        } catch (IOException e) {
+            // closed by the other end or replaced
+        } catch (InterruptedException e) {
+            // stopping
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private void receive(Socket socket, InputStream in, OutputStream out) {
+        byte[] buffer = new byte[READ_CHUNK];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try {
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                bytesReceived.addAndGet(count);
+                if (echo) {
+                    for (int i = 0; i < count; i++) {
+                        line.write(buffer[i]);
+                        if (buffer[i] == '\n') {
+                            synchronized (out) {
+                                line.writeTo(out);
+                            }
+                            line.reset();
+                        }
+                    }
+                }
+                if (pattern.readDelay > 0) {
+                    Thread.sleep(pattern.readDelay);
+                }
+            }
+        } catch (IOException e) {
+            // closed by the sender or replaced
+        } catch (InterruptedException e) {
+            // stopping
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    // an exponentially distributed wait with the given mean, so disconnects are a Poisson process
+    private long exponential(long mean) {
+        return (long) (-mean * Math.log(1 - random.nextDouble()));
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8023;
+        String name = args.length > 1 ? args[1] : "steady";
+        Map<String, TrafficPattern> patterns = TrafficPattern.named();
+        TrafficPattern pattern = patterns.get(name);
+        if (pattern == null) {
+            System.err.println("Unknown pattern " + name + ", expected one of " + patterns.keySet());
+            System.exit(2);
+        }
+
+        // listen on every interface, so the Android emulator can connect to tcp://10.0.2.2:port
+        DeviceSimulator simulator = new DeviceSimulator(null, port, pattern);
+        simulator.start();
+        System.out.println("Simulating a " + name + " device on port " + simulator.getPort() + ": " + pattern);
+        while (true) {
+            Thread.sleep(10000);
+            System.out.println(simulator.getConnections() + " connections, " + simulator.getFramesSent() + " frames sent, "
+                    + simulator.getBytesReceived() + " bytes received");
+        }
+    }
+}
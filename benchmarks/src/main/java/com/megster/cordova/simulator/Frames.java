@@ -0,0 +1,48 @@
+package com.megster.cordova.simulator;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The frames a simulated device sends: a line with a sequence number, the
+ * System.nanoTime() when it was sent and padding, so a receiver in the
+ * same process can find lost frames and measure latency.
+ *
+ *     42 1234567890123 xxxxxxxx\n
+ */
+public final class Frames {
+
+    public static final int MIN_SIZE = 48;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private Frames() {
+    }
+
+    public static byte[] encode(long sequence, long sentNanos, int size) {
+        byte[] header = (sequence + " " + sentNanos + " ").getBytes(ASCII);
+        byte[] frame = Arrays.copyOf(header, size);
+        Arrays.fill(frame, header.length, size - 1, (byte) 'x');
+        frame[size - 1] = '\n';
+        return frame;
+    }
+
+    /**
+     * @return {sequence, sentNanos}, or null if frame is not a simulator frame
+     */
+    public static long[] decode(String frame) {
+        int first = frame.indexOf(' ');
+        int second = first < 0 ? -1 : frame.indexOf(' ', first + 1);
+        if (second < 0) {
+            return null;
+        }
+        try {
+            return new long[] {
+                    Long.parseLong(frame.substring(0, first)),
+                    Long.parseLong(frame.substring(first + 1, second))
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.megster.cordova.simulator;
+
+import android.app.Activity;
+import com.megster.cordova.BluetoothSerial;
+import com.megster.cordova.Histogram;
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
+import org.apache.cordova.CordovaInterface;
+import org.apache.cordova.CordovaPreferences;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the BluetoothSerial plugin against a DeviceSimulator for a long
+ * time, the way an app would: connect with reconnect, subscribe to lines
+ * and write at a steady rate, or send transactions that the simulator
+ * answers in between the frames. All actions are executed on one thread, as
+ * the bridge does. Every report interval it prints throughput, latency
+ * percentiles from the simulator sending a frame to the subscriber
+ * callback, frames lost, the plugin's buffer and write stats and the heap
+ * used after a full GC, so leaks show up as a heap that keeps growing.
+ *
+ *     java -cp target/benchmarks.jar com.megster.cordova.simulator.SoakTest pattern=bursty duration=2h
+ *
+ * Options, as name=value:
+ *   pattern     steady, bursty, large, slow, flaky or mixed (steady)
+ *   duration    how long to run, e.g. 90s, 30m or 8h (60s)
+ *   report      seconds between reports (10)
+ *   writeRate   writes per second sent to the device (50)
+ *   writeSize   bytes per write (64)
+ *   transact    1 to send the writes with transact and wait for the echo (0)
+ *   frameSize, framesPerSecond, burstSize, readDelay, disconnectInterval
+ *               override the pattern
+ *
+ * At the end the simulator stops sending and the test waits for the frames
+ * in flight. It exits with 1 unless frames were received, every frame sent
+ * was received except those lost when the connection dropped, no frame was
+ * malformed and the subscriber got no errors. The subscription is made
+ * before the first connect, so receiving anything also shows that a
+ * subscription to a device that is not connected yet works. Losses, and
+ * data dropped by the receive buffer, are only expected when the pattern
+ * drops the connection.
+ */
+public class SoakTest {
+
+    private final TrafficPattern pattern;
+    private final long durationMillis;
+    private final long reportMillis;
+    private final int writeRate;
+    private final int writeSize;
+    private final boolean transact;
+
+    private final ScheduledExecutorService bridge = Executors.newSingleThreadScheduledExecutor();
+    private final BluetoothSerial plugin = new BluetoothSerial();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private DeviceSimulator simulator;
+    private String address;
+
+    // updated by the subscriber, on the plugin's reader threads
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong badFrames = new AtomicLong();
+    private final AtomicLong subscriberErrors = new AtomicLong();
+    private volatile Histogram latency = new Histogram();  // microseconds, replaced every report
+    private final Histogram totalLatency = new Histogram();
+    private long lastSequence = -1;
+
+    private final AtomicLong writesOk = new AtomicLong();
+    private final AtomicLong writesFailed = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong connectErrors = new AtomicLong();
+
+    public SoakTest(TrafficPattern pattern, long durationMillis, long reportMillis, int writeRate, int writeSize, boolean transact) {
+        this.pattern = pattern;
+        this.durationMillis = durationMillis;
+        this.reportMillis = reportMillis;
+        this.writeRate = writeRate;
+        this.writeSize = writeSize;
+        this.transact = transact;
+    }
+
+    /**
+     * @return true if no data was lost that the pattern doesn't explain
+     */
+    public boolean run() throws Exception {
+        simulator = new DeviceSimulator(InetAddress.getLoopbackAddress(), 0, pattern);
+        simulator.setEcho(transact);
+        simulator.start();
+        address = "tcp://127.0.0.1:" + simulator.getPort();
+
+        plugin.cordova = new CordovaInterface() {
+            private final Activity activity = new Activity();
+
+            public Activity getActivity() {
+                return activity;
+            }
+        };
+        plugin.preferences = new CordovaPreferences();
+        plugin.preferences.set("BluetoothSerialTcp", true);
+
+        System.out.println("Soak test of " + pattern + " for " + durationMillis / 1000 + "s");
+
+        JSONObject reconnect = new JSONObject()
+                .put("maxAttempts", 1000)
+                .put("baseDelay", 100)
+                .put("maxDelay", 2000);
+        execute("subscribe", new JSONArray().put("\n").put(JSONObject.NULL).put(address), subscriber);
+        execute("connect", new JSONArray().put(address).put(new JSONObject().put("reconnect", reconnect)), connectCallback);
+
+        // writes fail until the first connect
+        long deadline = System.currentTimeMillis() + 10000;
+        while (connects.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        final String data = new String(new char[writeSize]).replace('\0', 'w');
+        // the echo is matched to its transaction by the number at the start, frames in between go to the subscriber
+        final JSONObject transactOptions = new JSONObject()
+                .put("delimiter", "\n")
+                .put("correlation", new JSONObject().put("pattern", "^#(\\d+) "));
+        ScheduledFuture<?> writes = null;
+        if (writeRate > 0) {
+            writes = bridge.scheduleAtFixedRate(new Runnable() {
+                private long count;
+
+                public void run() {
+                    try {
+                        if (transact) {
+                            String request = "#" + count++ + " " + data + "\n";
+                            plugin.execute("transact", new CordovaArgs(new JSONArray().put(request).put("UTF-8")
+                                    .put(transactOptions).put(address)), writeCallback);
+                        } else {
+                            plugin.execute("write", new CordovaArgs(new JSONArray().put(data).put("UTF-8").put(address)), writeCallback);
+                        }
+                    } catch (JSONException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, 0, TimeUnit.SECONDS.toMicros(1) / writeRate, TimeUnit.MICROSECONDS);
+        }
+
+        long start = System.currentTimeMillis();
+        long baselineHeap = -1;
+        long lastFrames = 0;
+        long lastBytes = 0;
+        long lastWrites = 0;
+        JSONObject stats = null;
+        printHeader();
+        while (System.currentTimeMillis() - start < durationMillis) {
+            Thread.sleep(Math.min(reportMillis, durationMillis - (System.currentTimeMillis() - start)));
+
+            Histogram interval = latency;
+            latency = new Histogram();
+            stats = getStats();
+            long heap = usedHeap();
+            if (baselineHeap < 0) {
+                // after the first interval, once everything is loaded and the buffers have grown
+                baselineHeap = heap;
+            }
+
+            long seconds = (System.currentTimeMillis() - start) / 1000;
+            double period = reportMillis / 1000.0;
+            System.out.println(String.format("%7d %9.0f %9.1f %8d %8d %8d %8d %10d %10d %8.0f %8d %10d %8.1f",
+                    seconds,
+                    (frames.get() - lastFrames) / period,
+                    (bytes.get() - lastBytes) / period / 1024,
+                    interval.getPercentile(0.5),
+                    interval.getPercentile(0.99),
+                    interval.getMax(),
+                    lost.get(),
+                    stats.optLong("droppedBytes"),
+                    stats.optLong("buffered"),
+                    (writesOk.get() - lastWrites) / period,
+                    writesFailed.get(),
+                    stats.optLong("reconnects"),
+                    heap / (1024.0 * 1024)));
+            lastFrames = frames.get();
+            lastBytes = bytes.get();
+            lastWrites = writesOk.get();
+        }
+
+        // let the frames already sent arrive before counting
+        simulator.pause();
+        if (writes != null) {
+            writes.cancel(false);
+        }
+        awaitFrames();
+        stats = getStats();
+        bridge.shutdownNow();
+        bridge.awaitTermination(5, TimeUnit.SECONDS);
+        plugin.onDestroy();
+        simulator.stop();
+
+        long heapGrowth = usedHeap() - baselineHeap;
+        System.out.println();
+        System.out.println("frames sent       " + simulator.getFramesSent());
+        System.out.println("frames received   " + frames.get());
+        System.out.println("frames lost       " + lost.get() + (pattern.disconnectInterval > 0 ? " (connection dropped "
+                + simulator.getDisconnects() + " times)" : ""));
+        System.out.println("malformed frames  " + badFrames.get());
+        System.out.println("subscriber errors " + subscriberErrors.get());
+        System.out.println("dropped bytes     " + (stats == null ? 0 : stats.optLong("droppedBytes")));
+        System.out.println("buffer high water " + (stats == null ? 0 : stats.optLong("bufferHighWaterMark")));
+        System.out.println("latency us        " + totalLatency.toJSON());
+        System.out.println("writes            " + writesOk.get() + " ok, " + writesFailed.get() + " failed, "
+                + simulator.getBytesReceived() + " bytes received by the device");
+        if (transact && stats != null) {
+            System.out.println("transactions us   " + stats.optJSONObject("transactionTime") + ", "
+                    + stats.optLong("transactionTimeouts") + " timed out");
+        }
+        System.out.println("connects          " + connects.get() + ", errors " + connectErrors.get());
+        System.out.println("heap growth       " + String.format("%.1f MB", heapGrowth / (1024.0 * 1024)));
+
+        boolean dropsExpected = pattern.disconnectInterval > 0;
+        long expectedLost = dropsExpected ? lost.get() : 0;
+        boolean ok = frames.get() > 0
+                && frames.get() == simulator.getFramesSent() - expectedLost
+                && badFrames.get() == 0
+                && subscriberErrors.get() == 0
+                && (dropsExpected || stats == null || stats.optLong("droppedBytes") == 0);
+        System.out.println(ok ? "PASS" : "FAIL");
+        return ok;
+    }
+
+    private void printHeader() {
+        System.out.println(String.format("%7s %9s %9s %8s %8s %8s %8s %10s %10s %8s %8s %10s %8s",
+                "seconds", "frames/s", "KB/s", "p50 us", "p99 us", "max us", "lost", "dropped B", "buffered B",
+                "writes/s", "w failed", "reconnects", "heap MB"));
+    }
+
+    private JSONObject getStats() throws Exception {
+        final JSONObject[] holder = new JSONObject[1];
+        final CallbackContext callback = new CallbackContext("stats") {
+            @Override
+            public void sendPluginResult(PluginResult result) {
+                try {
+                    holder[0] = new JSONObject(result.getMessage());
+                } catch (JSONException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        // the callback runs on the bridge thread before execute returns
+        return bridge.submit(new Callable<JSONObject>() {
+            public JSONObject call() throws Exception {
+                plugin.execute("getStats", new CordovaArgs(new JSONArray().put(address)), callback);
+                return holder[0];
+            }
+        }).get();
+    }
+
+    private void execute(final String action, final JSONArray args, final CallbackContext callback) throws Exception {
+        bridge.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return plugin.execute(action, new CordovaArgs(args), callback);
+            }
+        }).get();
+    }
+
+    // Wait until every frame sent was received or counted as lost, or nothing arrives for two seconds
+    private void awaitFrames() throws InterruptedException {
+        long seen = -1;
+        long idleSince = System.currentTimeMillis();
+        while (frames.get() + lost.get() < simulator.getFramesSent()
+                && System.currentTimeMillis() - idleSince < 2000) {
+            long now = frames.get() + lost.get();
+            if (now != seen) {
+                seen = now;
+                idleSince = System.currentTimeMillis();
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private long usedHeap() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private void onFrame(String frame) {
+        long now = System.nanoTime();
+        long[] decoded = Frames.decode(frame);
+        if (decoded == null) {
+            badFrames.incrementAndGet();
+            return;
+        }
+        frames.incrementAndGet();
+        bytes.addAndGet(frame.length());
+        long micros = (now - decoded[1]) / 1000;
+        latency.record(micros);
+        totalLatency.record(micros);
+
+        synchronized (this) {
+            long sequence = decoded[0];
+            if (sequence > lastSequence + 1) {
+                lost.addAndGet(sequence - lastSequence - 1);
+            }
+            lastSequence = Math.max(lastSequence, sequence);
+        }
+    }
+
+    private final CallbackContext subscriber = new CallbackContext("subscribe") {
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            if (result.getStatus() == PluginResult.Status.OK.ordinal()) {
+                onFrame(result.getMessage());
+            } else if (result.getStatus() == PluginResult.Status.ERROR.ordinal()) {
+                subscriberErrors.incrementAndGet();
+                System.out.println("subscribe failed: " + result.getMessage());
+            }
+        }
+    };
+
+    private final CallbackContext connectCallback = new CallbackContext("connect") {
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            if (result.getStatus() == PluginResult.Status.OK.ordinal()) {
+                connects.incrementAndGet();
+            } else if (result.getStatus() == PluginResult.Status.ERROR.ordinal()) {
+                connectErrors.incrementAndGet();
+                System.out.println("connect failed: " + result.getMessage());
+            }
+        }
+    };
+
+    private final CallbackContext writeCallback = new CallbackContext("write") {
+        @Override
+        public void sendPluginResult(PluginResult result) {
+            if (result.getStatus() == PluginResult.Status.OK.ordinal()) {
+                writesOk.incrementAndGet();
+            } else if (result.getStatus() == PluginResult.Status.ERROR.ordinal()) {
+                writesFailed.incrementAndGet();
+            }
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 1) {
+                usage("Expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        String name = option(options, "pattern", "steady");
+        TrafficPattern base = TrafficPattern.named().get(name);
+        if (base == null) {
+            usage("Unknown pattern " + name + ", expected one of " + TrafficPattern.named().keySet());
+        }
+        TrafficPattern pattern = new TrafficPattern(
+                Integer.parseInt(option(options, "frameSize", base.frameSize)),
+                Integer.parseInt(option(options, "framesPerSecond", base.framesPerSecond)),
+                Integer.parseInt(option(options, "burstSize", base.burstSize)),
+                Integer.parseInt(option(options, "readDelay", base.readDelay)),
+                Long.parseLong(option(options, "disconnectInterval", base.disconnectInterval)));
+
+        SoakTest test = new SoakTest(pattern,
+                parseDuration(option(options, "duration", "60s")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(option(options, "report", 10))),
+                Integer.parseInt(option(options, "writeRate", 50)),
+                Integer.parseInt(option(options, "writeSize", 64)),
+                "1".equals(option(options, "transact", 0)));
+        if (!options.isEmpty()) {
+            usage("Unknown options " + options.keySet());
+        }
+        System.exit(test.run() ? 0 : 1);
+    }
+
+    // removes the option, so unknown options are left at the end
+    private static String option(Map<String, String> options, String name, Object defaultValue) {
+        String value = options.remove(name);
+        return value == null ? String.valueOf(defaultValue) : value;
+    }
+
+    private static long parseDuration(String duration) {
+        char unit = duration.charAt(duration.length() - 1);
+        if (Character.isDigit(unit)) {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(duration));
+        }
+        long value = Long.parseLong(duration.substring(0, duration.length() - 1));
+        switch (unit) {
+            case 's':
+                return TimeUnit.SECONDS.toMillis(value);
+            case 'm':
+                return TimeUnit.MINUTES.toMillis(value);
+            case 'h':
+                return TimeUnit.HOURS.toMillis(value);
+            default:
+                usage("Invalid duration " + duration);
+                return 0;
+        }
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: SoakTest [pattern=steady|bursty|large|slow|flaky|mixed] [duration=60s] [report=10]"
+                + " [writeRate=50] [writeSize=64] [transact=0|1] [frameSize=n] [framesPerSecond=n] [burstSize=n] [readDelay=ms]"
+                + " [disconnectInterval=ms]");
+        System.exit(2);
+    }
+}
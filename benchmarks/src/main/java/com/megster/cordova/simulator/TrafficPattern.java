@@ -0,0 +1,51 @@
+package com.megster.cordova.simulator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The traffic a simulated device sends and how it treats the connection.
+ * Frames are sent in bursts of burstSize at an average of framesPerSecond,
+ * so a burstSize of 1 is a steady stream.
+ */
+public class TrafficPattern {
+
+    public final int frameSize;           // bytes per frame, including the newline
+    public final int framesPerSecond;     // average rate
+    public final int burstSize;           // frames sent back to back
+    public final int readDelay;           // milliseconds the device waits after reading each 64 bytes, 0 reads as fast as possible
+    public final long disconnectInterval; // mean milliseconds between dropped connections, 0 never drops
+
+    public TrafficPattern(int frameSize, int framesPerSecond, int burstSize, int readDelay, long disconnectInterval) {
+        if (frameSize < Frames.MIN_SIZE || framesPerSecond < 1 || burstSize < 1 || readDelay < 0 || disconnectInterval < 0) {
+            throw new IllegalArgumentException("Invalid traffic pattern");
+        }
+        this.frameSize = frameSize;
+        this.framesPerSecond = framesPerSecond;
+        this.burstSize = burstSize;
+        this.readDelay = readDelay;
+        this.disconnectInterval = disconnectInterval;
+    }
+
+    /**
+     * The named patterns: steady, bursty, large, slow (a device that reads
+     * slowly), flaky (drops the connection about every 30 seconds) and
+     * mixed.
+     */
+    public static Map<String, TrafficPattern> named() {
+        Map<String, TrafficPattern> patterns = new LinkedHashMap<String, TrafficPattern>();
+        patterns.put("steady", new TrafficPattern(64, 200, 1, 0, 0));
+        patterns.put("bursty", new TrafficPattern(64, 200, 100, 0, 0));
+        patterns.put("large", new TrafficPattern(16 * 1024, 20, 1, 0, 0));
+        patterns.put("slow", new TrafficPattern(64, 200, 1, 50, 0));
+        patterns.put("flaky", new TrafficPattern(64, 200, 1, 0, 30000));
+        patterns.put("mixed", new TrafficPattern(256, 200, 20, 5, 60000));
+        return patterns;
+    }
+
+    @Override
+    public String toString() {
+        return "frameSize=" + frameSize + " framesPerSecond=" + framesPerSecond + " burstSize=" + burstSize
+                + " readDelay=" + readDelay + " disconnectInterval=" + disconnectInterval;
+    }
+}
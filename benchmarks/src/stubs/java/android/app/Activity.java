@@ -0,0 +1,13 @@
+package android.app;
+
+import android.content.Context;
+
+/**
+ * Stand-in for the Android Activity.
+ */
+public class Activity extends Context {
+
+    public Context getBaseContext() {
+        return this;
+    }
+}
@@ -0,0 +1,68 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Stand-in for the Android BluetoothAdapter. There is no radio, so
+ * nothing is bonded, listening fails and discovery never starts.
+ */
+public final class BluetoothAdapter {
+
+    public static final String ACTION_DISCOVERY_STARTED = "android.bluetooth.adapter.action.DISCOVERY_STARTED";
+    public static final String ACTION_DISCOVERY_FINISHED = "android.bluetooth.adapter.action.DISCOVERY_FINISHED";
+    public static final String ACTION_STATE_CHANGED = "android.bluetooth.adapter.action.STATE_CHANGED";
+    public static final String EXTRA_STATE = "android.bluetooth.adapter.extra.STATE";
+    public static final int ERROR = Integer.MIN_VALUE;
+    public static final int STATE_OFF = 10;
+    public static final int STATE_TURNING_ON = 11;
+    public static final int STATE_ON = 12;
+    public static final int STATE_TURNING_OFF = 13;
+
+    private static final BluetoothAdapter ADAPTER = new BluetoothAdapter();
+
+    private BluetoothAdapter() {
+    }
+
+    public static BluetoothAdapter getDefaultAdapter() {
+        return ADAPTER;
+    }
+
+    public static boolean checkBluetoothAddress(String address) {
+        return address != null && address.matches("[0-9A-F]{2}(:[0-9A-F]{2}){5}");
+    }
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        return new BluetoothDevice(address);
+    }
+
+    public Set<BluetoothDevice> getBondedDevices() {
+        return Collections.emptySet();
+    }
+
+    public boolean isEnabled() {
+        return true;
+    }
+
+    public boolean isDiscovering() {
+        return false;
+    }
+
+    public boolean startDiscovery() {
+        return false;
+    }
+
+    public boolean cancelDiscovery() {
+        return true;
+    }
+
+    public BluetoothServerSocket listenUsingRfcommWithServiceRecord(String name, UUID uuid) throws IOException {
+        throw new IOException("not supported");
+    }
+
+    public BluetoothServerSocket listenUsingInsecureRfcommWithServiceRecord(String name, UUID uuid) throws IOException {
+        throw new IOException("not supported");
+    }
+}
@@ -0,0 +1,15 @@
+package android.bluetooth;
+
+/**
+ * Stand-in for the Android BluetoothClass.
+ */
+public final class BluetoothClass {
+
+    public int getDeviceClass() {
+        return 0;
+    }
+
+    public int getMajorDeviceClass() {
+        return 0;
+    }
+}
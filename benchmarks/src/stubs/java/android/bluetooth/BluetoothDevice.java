@@ -0,0 +1,48 @@
+package android.bluetooth;
+
+import android.os.Parcelable;
+
+import java.io.IOException;
+import java.util.UUID;
+
+public class BluetoothDevice implements Parcelable {
+
+    public static final String ACTION_FOUND = "android.bluetooth.device.action.FOUND";
+    public static final String ACTION_BOND_STATE_CHANGED = "android.bluetooth.device.action.BOND_STATE_CHANGED";
+    public static final String EXTRA_DEVICE = "android.bluetooth.device.extra.DEVICE";
+    public static final String EXTRA_BOND_STATE = "android.bluetooth.device.extra.BOND_STATE";
+    public static final String EXTRA_RSSI = "android.bluetooth.device.extra.RSSI";
+    public static final int BOND_NONE = 10;
+    public static final int BOND_BONDING = 11;
+    public static final int BOND_BONDED = 12;
+
+    private final String address;
+
+    public BluetoothDevice(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return address;
+    }
+
+    public BluetoothClass getBluetoothClass() {
+        return null;
+    }
+
+    public int getBondState() {
+        return BOND_BONDED;
+    }
+
+    public BluetoothSocket createRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+        throw new IOException("not supported");
+    }
+
+    public BluetoothSocket createInsecureRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+        throw new IOException("not supported");
+    }
+}
@@ -0,0 +1,13 @@
+package android.bluetooth;
+
+import java.io.IOException;
+
+public class BluetoothServerSocket {
+
+    public BluetoothSocket accept() throws IOException {
+        throw new IOException("not supported");
+    }
+
+    public void close() throws IOException {
+    }
+}
@@ -0,0 +1,42 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stand-in for the Android BluetoothSocket over the given streams, so the
+ * service can be driven without a radio.
+ */
+public class BluetoothSocket {
+
+    private final BluetoothDevice device;
+    private final InputStream in;
+    private final OutputStream out;
+
+    public BluetoothSocket(BluetoothDevice device, InputStream in, OutputStream out) {
+        this.device = device;
+        this.in = in;
+        this.out = out;
+    }
+
+    public void connect() throws IOException {
+    }
+
+    public void close() throws IOException {
+        in.close();
+        out.close();
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return in;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return out;
+    }
+
+    public BluetoothDevice getRemoteDevice() {
+        return device;
+    }
+}
@@ -0,0 +1,22 @@
+package android.content;
+
+import android.os.Parcelable;
+
+public class Intent {
+
+    public String getAction() {
+        return null;
+    }
+
+    public int getIntExtra(String name, int defaultValue) {
+        return defaultValue;
+    }
+
+    public short getShortExtra(String name, short defaultValue) {
+        return defaultValue;
+    }
+
+    public <T extends Parcelable> T getParcelableExtra(String name) {
+        return null;
+    }
+}
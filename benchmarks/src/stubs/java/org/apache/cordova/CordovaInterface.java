@@ -0,0 +1,11 @@
+package org.apache.cordova;
+
+import android.app.Activity;
+
+/**
+ * Stand-in for the Cordova CordovaInterface.
+ */
+public interface CordovaInterface {
+
+    Activity getActivity();
+}
@@ -0,0 +1,24 @@
+package org.apache.cordova;
+
+import org.json.JSONException;
+
+/**
+ * Stand-in for the Cordova CordovaPlugin. The harness sets cordova and
+ * preferences and calls execute directly, as the bridge would.
+ */
+public class CordovaPlugin {
+
+    public CordovaInterface cordova;
+
+    public CordovaPreferences preferences;
+
+    public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext) throws JSONException {
+        return false;
+    }
+
+    public void onResume(boolean multitasking) {
+    }
+
+    public void onDestroy() {
+    }
+}
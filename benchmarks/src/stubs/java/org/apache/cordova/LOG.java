@@ -0,0 +1,17 @@
+package org.apache.cordova;
+
+import android.util.Log;
+
+/**
+ * Stand-in for the Cordova LOG, which forwards to android.util.Log.
+ */
+public class LOG {
+
+    public static void d(String tag, String message) {
+        Log.d(tag, message);
+    }
+
+    public static void e(String tag, String message) {
+        Log.e(tag, message);
+    }
+}
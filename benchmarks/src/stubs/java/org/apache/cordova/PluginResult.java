@@ -0,0 +1,75 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Base64;
+
+/**
+ * Stand-in for the Cordova PluginResult. Messages are encoded when the
+ * result is created, as Cordova does, so the encoding cost is measured.
+ */
+public class PluginResult {
+
+    public enum Status {
+        NO_RESULT,
+        OK,
+        CLASS_NOT_FOUND_EXCEPTION,
+        ILLEGAL_ACCESS_EXCEPTION,
+        INSTANTIATION_EXCEPTION,
+        MALFORMED_URL_EXCEPTION,
+        IO_EXCEPTION,
+        INVALID_ACTION,
+        JSON_EXCEPTION,
+        ERROR
+    }
+
+    private final Status status;
+    private final String encodedMessage;
+    private boolean keepCallback;
+
+    public PluginResult(Status status) {
+        this(status, (String) null);
+    }
+
+    public PluginResult(Status status, String message) {
+        this.status = status;
+        this.encodedMessage = message;
+    }
+
+    public PluginResult(Status status, JSONArray message) {
+        this(status, message.toString());
+    }
+
+    public PluginResult(Status status, JSONObject message) {
+        this(status, message.toString());
+    }
+
+    public PluginResult(Status status, int i) {
+        this(status, Integer.toString(i));
+    }
+
+    public PluginResult(Status status, boolean b) {
+        this(status, Boolean.toString(b));
+    }
+
+    public PluginResult(Status status, byte[] data) {
+        this(status, Base64.getEncoder().encodeToString(data));
+    }
+
+    public void setKeepCallback(boolean keepCallback) {
+        this.keepCallback = keepCallback;
+    }
+
+    public boolean getKeepCallback() {
+        return keepCallback;
+    }
+
+    public int getStatus() {
+        return status.ordinal();
+    }
+
+    public String getMessage() {
+        return encodedMessage;
+    }
+}
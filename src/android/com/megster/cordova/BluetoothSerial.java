@@ -2,15 +2,25 @@ package com.megster.cordova;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 import org.apache.cordova.*;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Set;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // kludgy imports to support 2.9 and 3.0 due to package changes
 // import org.apache.cordova.CordovaArgs;
@@ -30,14 +40,32 @@ public class BluetoothSerial extends CordovaPlugin {
     private static final String CONNECT_INSECURE = "connectInsecure";
     private static final String DISCONNECT = "disconnect";
     private static final String WRITE = "write";
+    private static final String TRANSACT = "transact";
+    private static final String START_TRANSFER = "startTransfer";
+    private static final String WRITE_TRANSFER = "writeTransfer";
+    private static final String END_TRANSFER = "endTransfer";
+    private static final String CANCEL_TRANSFER = "cancelTransfer";
     private static final String AVAILABLE = "available";
     private static final String READ = "read";
     private static final String READ_UNTIL = "readUntil";
     private static final String SUBSCRIBE = "subscribe";
     private static final String UNSUBSCRIBE = "unsubscribe";
+    private static final String SUBSCRIBE_RAW = "subscribeRawData";
+    private static final String UNSUBSCRIBE_RAW = "unsubscribeRawData";
     private static final String IS_ENABLED = "isEnabled";
     private static final String IS_CONNECTED = "isConnected";
     private static final String CLEAR = "clear";
+    private static final String CONFIGURE_BUFFER = "configureBuffer";
+    private static final String CONFIGURE_WRITE = "configureWrite";
+    private static final String CONFIGURE_READ = "configureRead";
+    private static final String GET_STATS = "getStats";
+    private static final String SUBSCRIBE_STATS = "subscribeStats";
+    private static final String UNSUBSCRIBE_STATS = "unsubscribeStats";
+    private static final String FLUSH = "flush";
+    private static final String SUBSCRIBE_EVENTS = "subscribeEvents";
+    private static final String UNSUBSCRIBE_EVENTS = "unsubscribeEvents";
+    private static final String SUBSCRIBE_DEVICE_CHANGES = "subscribeDeviceChanges";
+    private static final String UNSUBSCRIBE_DEVICE_CHANGES = "unsubscribeDeviceChanges";
 
     private static final String ACTION_IS_DISCOVERING = "isDiscovering";
     private static final String ACTION_START_DISCOVERY = "startDiscovery";
@@ -45,42 +73,59 @@ public class BluetoothSerial extends CordovaPlugin {
     private static final String ACTION_IS_PAIRED = "isPaired";
     private static final String ACTION_PAIR = "pair";
 
-    // callbacks
-    private CallbackContext connectCallback;
-    private CallbackContext dataAvailableCallback;
-    private CallbackContext discoveryCallback;
-    private CallbackContext pairingCallback;
+    // callbacks, used from the service threads
+    private volatile CallbackContext eventCallback;
+    private volatile CallbackContext deviceChangesCallback;
+    private CallbackContext statsCallback;
+    private ScheduledFuture<?> statsFuture;
+    private volatile CallbackContext discoveryCallback;
+    private volatile DiscoveredDevices discoveredDevices = new DiscoveredDevices();
+    private volatile int discoveryReport;
+
+    // the bonded devices, for list and isPaired
+    private final DeviceRegistry deviceRegistry = new DeviceRegistry();
+    private ScheduledFuture<?> discoveryFuture;
+    private volatile CallbackContext pairingCallback;
 
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothSerialService bluetoothSerialService;
 
     // Debugging
     private static final String TAG = "BluetoothSerial";
-    private static final boolean D = true;
 
-    // Message types sent from the BluetoothSerialService Handler
-    public static final int MESSAGE_STATE_CHANGE = 1;
-    public static final int MESSAGE_READ = 2;
-    public static final int MESSAGE_WRITE = 3;
-    public static final int MESSAGE_DEVICE_NAME = 4;
-    public static final int MESSAGE_TOAST = 5;
-    public static final int MESSAGE_DISCOVERY_STARTED = 6;
-    public static final int MESSAGE_DISCOVERY_FINISHED = 7;
-    public static final int MESSAGE_DEVICE_FOUND = 8;
-    public static final int MESSAGE_DEVICE_BONDED = 9;
-
-    // Key names received from the BluetoothChatService Handler
-    public static final String DEVICE_NAME = "device_name";
-    public static final String TOAST = "toast";
-    public static final String DATA_DEVICE_NAME = "name";
-    public static final String DATA_DEVICE_ADDRESS = "address";
+    // config.xml preference that allows tcp:// connections to a device simulator
+    private static final String TCP_PREFERENCE = "BluetoothSerialTcp";
+    private static final boolean D = true;
 
     public static int ERR_UNKNOWN = 404;
 
-    private boolean _wasDiscoveryCanceled;
+    // defaults for connect options {reconnect: {...}}
+    private static final int DEFAULT_RECONNECT_ATTEMPTS = 5;
+    private static final long DEFAULT_RECONNECT_BASE_DELAY = 500;
+    private static final long DEFAULT_RECONNECT_MAX_DELAY = 30000;
+    private static final double DEFAULT_RECONNECT_JITTER = 0.2;
+    // default for connect options {heartbeat: {interval}}, milliseconds of quiet before a heartbeat is sent
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 5000;
+
+    // how discovery reports devices, startDiscovery options {report: "each" | "batch" | "final", interval}
+    private static final int REPORT_EACH = 0;    // each device when first seen
+    private static final int REPORT_BATCH = 1;   // the devices seen since the last batch, every interval
+    private static final int REPORT_FINAL = 2;   // every device, strongest first, when discovery finishes
+    private static final int DEFAULT_DISCOVERY_INTERVAL = 500;
 
-    StringBuffer buffer = new StringBuffer();
-    private String delimiter;
+    private volatile boolean _wasDiscoveryCanceled;
+
+    // runs timed work such as batch flushes off the UI thread
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    // one session per remote device, keyed by address
+    private final Map<String, DeviceSession> sessions = new ConcurrentHashMap<String, DeviceSession>();
+    // used by actions that are not given a device id, the most recently connected device
+    private volatile DeviceSession defaultSession = new DeviceSession(null, scheduler);
+
+    // streaming writes in progress, keyed by transfer id
+    private final Map<Integer, Transfer> transfers = new ConcurrentHashMap<Integer, Transfer>();
+    private final AtomicInteger nextTransferId = new AtomicInteger(1);
 
     @Override
     public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext) throws JSONException {
@@ -92,7 +137,7 @@ public class BluetoothSerial extends CordovaPlugin {
         }
 
         if (bluetoothSerialService == null) {
-            bluetoothSerialService = new BluetoothSerialService(cordova.getActivity().getBaseContext(), mHandler);
+            bluetoothSerialService = new BluetoothSerialService(cordova.getActivity().getBaseContext(), serviceListener);
         }
 
         boolean validAction = true;
@@ -114,44 +159,92 @@ public class BluetoothSerial extends CordovaPlugin {
 
         } else if (action.equals(DISCONNECT)) {
 
-            connectCallback = null;
-            bluetoothSerialService.stop();
-            callbackContext.success();
+            disconnect(args, callbackContext);
 
         } else if (action.equals(WRITE)) {
 
-            String data = args.getString(0);
-            bluetoothSerialService.write(data.getBytes());
-            callbackContext.success();
+            write(args, callbackContext);
+
+        } else if (action.equals(TRANSACT)) {
+
+            transact(args, callbackContext);
+
+        } else if (action.equals(START_TRANSFER)) {
+
+            startTransfer(args, callbackContext);
+
+        } else if (action.equals(WRITE_TRANSFER)) {
+
+            writeTransfer(args, callbackContext);
+
+        } else if (action.equals(END_TRANSFER) || action.equals(CANCEL_TRANSFER)) {
+
+            Transfer transfer = transfers.get(args.getInt(0));
+            if (transfer == null) {
+                this.error(callbackContext, "Unknown transfer.", 404);
+            } else {
+                if (action.equals(END_TRANSFER)) {
+                    transfer.end();
+                } else {
+                    transfer.cancel();
+                }
+                callbackContext.success();
+            }
 
         } else if (action.equals(AVAILABLE)) {
 
-            callbackContext.success(available());
+            DeviceSession session = session(args, 0, callbackContext, false);
+            if (session != null) {
+                callbackContext.success(session.available());
+            }
 
         } else if (action.equals(READ)) {
 
-            callbackContext.success(read());
+            DeviceSession session = session(args, 0, callbackContext, false);
+            if (session != null) {
+                callbackContext.success(session.read());
+            }
 
         } else if (action.equals(READ_UNTIL)) {
 
-            String interesting = args.getString(0);
-            callbackContext.success(readUntil(interesting));
+            String[] interesting = delimiters(args, 0);
+            if (interesting == null) {
+                error(callbackContext, "Delimiters must not be empty.", 400);
+            } else {
+                DeviceSession session = session(args, 1, callbackContext, false);
+                if (session != null) {
+                    callbackContext.success(session.readUntil(interesting));
+                }
+            }
 
         } else if (action.equals(SUBSCRIBE)) {
 
-            delimiter = args.getString(0);
-            dataAvailableCallback = callbackContext;
-
-            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
-            result.setKeepCallback(true);
-            callbackContext.sendPluginResult(result);
+            subscribe(args, callbackContext);
 
         } else if (action.equals(UNSUBSCRIBE)) {
 
-            delimiter = null;
-            dataAvailableCallback = null;
+            DeviceSession session = session(args, 0, callbackContext, false);
+            if (session != null) {
+                session.unsubscribe();
+                releaseSession(session);
+                callbackContext.success();
+            }
 
-            callbackContext.success();
+        } else if (action.equals(SUBSCRIBE_RAW)) {
+
+            DeviceSession session = session(args, 0, callbackContext, true);
+            if (session != null) {
+                session.subscribeRawData(callbackContext);
+            }
+
+        } else if (action.equals(UNSUBSCRIBE_RAW)) {
+
+            DeviceSession session = session(args, 0, callbackContext, false);
+            if (session != null) {
+                session.unsubscribeRawData();
+                releaseSession(session);
+                callbackContext.success();
+            }
 
         } else if (action.equals(IS_ENABLED)) {
 
@@ -163,7 +256,7 @@ public class BluetoothSerial extends CordovaPlugin {
 
         } else if (action.equals(IS_CONNECTED)) {
 
-            if (bluetoothSerialService.getState() == BluetoothSerialService.STATE_CONNECTED) {
+            if (bluetoothSerialService.getState(address(args, 0)) == BluetoothSerialService.STATE_CONNECTED) {
                 callbackContext.success();
             } else {
                 callbackContext.error("Not connected.");
@@ -171,7 +264,88 @@ public class BluetoothSerial extends CordovaPlugin {
 
         } else if (action.equals(CLEAR)) {
 
-            buffer.setLength(0);
+            DeviceSession session = session(args, 0, callbackContext, false);
+            if (session != null) {
+                session.clear();
+                releaseSession(session);
+                callbackContext.success();
+            }
+
+        } else if (action.equals(CONFIGURE_BUFFER)) {
+
+            configureBuffer(args, callbackContext);
+
+        } else if (action.equals(CONFIGURE_WRITE)) {
+
+            configureWrite(args, callbackContext);
+
+        } else if (action.equals(CONFIGURE_READ)) {
+
+            JSONObject options = args.getJSONObject(0);
+            int readSize = options.optInt("readSize", BluetoothSerialService.DEFAULT_READ_SIZE);
+            if (readSize < 1) {
+                this.error(callbackContext, "Invalid read options.", 400);
+            } else {
+                bluetoothSerialService.setReadSize(readSize);
+                callbackContext.success();
+            }
+
+        } else if (action.equals(GET_STATS)) {
+
+            if (args.isNull(0)) {
+                callbackContext.success(getStats());
+            } else {
+                DeviceSession session = session(args, 0, callbackContext, false);
+                if (session != null) {
+                    callbackContext.success(getStats(session));
+                }
+            }
+
+        } else if (action.equals(SUBSCRIBE_STATS)) {
+
+            int interval = args.getInt(0);
+            if (interval < 1) {
+                this.error(callbackContext, "Invalid stats interval.", 400);
+            } else {
+                subscribeStats(interval, callbackContext);
+            }
+
+        } else if (action.equals(UNSUBSCRIBE_STATS)) {
+
+            subscribeStats(0, null);
+            callbackContext.success();
+
+        } else if (action.equals(FLUSH)) {
+
+            bluetoothSerialService.flush(address(args, 0));
+            callbackContext.success();
+
+        } else if (action.equals(SUBSCRIBE_EVENTS)) {
+
+            eventCallback = callbackContext;
+
+            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+
+        } else if (action.equals(UNSUBSCRIBE_EVENTS)) {
+
+            eventCallback = null;
+
+            callbackContext.success();
+
+        } else if (action.equals(SUBSCRIBE_DEVICE_CHANGES)) {
+
+            deviceChangesCallback = callbackContext;
+
+            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+
+        } else if (action.equals(UNSUBSCRIBE_DEVICE_CHANGES)) {
+
+            deviceChangesCallback = null;
+
             callbackContext.success();
 
         } else if (action.equals(ACTION_IS_DISCOVERING)) {
@@ -188,7 +362,10 @@ public class BluetoothSerial extends CordovaPlugin {
         } else if (ACTION_IS_PAIRED.equals(action)) {
             try {
                 String address = args.getString(0);
-                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, bluetoothSerialService.isBonded(address)));
+                if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+                    throw new IllegalArgumentException(address + " is not a valid Bluetooth address");
+                }
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, registry().isBonded(address)));
             } catch (Exception e) {
                 callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.ERROR));
                 e.printStackTrace();
@@ -216,12 +393,20 @@ public class BluetoothSerial extends CordovaPlugin {
         return validAction;
     }
 
+    @Override
+    public void onResume(boolean multitasking) {
+        super.onResume(multitasking);
+        // devices may have been paired or unpaired while the app was in the background
+        deviceRegistry.invalidate();
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         if (bluetoothSerialService != null) {
             bluetoothSerialService.stop();
         }
+        scheduler.shutdownNow();
     }
 
 
@@ -234,6 +419,31 @@ public class BluetoothSerial extends CordovaPlugin {
     private void startDiscovery(CordovaArgs args, CallbackContext callbackCtx) {
         // TODO Someday add an option to fetch UUIDs at the same time
 
+        DiscoveryFilter filter = null;
+        int report = REPORT_EACH;
+        int interval = DEFAULT_DISCOVERY_INTERVAL;
+        JSONObject options = args.optJSONObject(0);
+        if (options != null) {
+            try {
+                filter = DiscoveryFilter.fromOptions(options);
+                String reportOption = options.optString("report", "each");
+                if (reportOption.equals("batch")) {
+                    report = REPORT_BATCH;
+                } else if (reportOption.equals("final")) {
+                    report = REPORT_FINAL;
+                } else if (!reportOption.equals("each")) {
+                    throw new IllegalArgumentException("Unknown report " + reportOption);
+                }
+                interval = options.optInt("interval", DEFAULT_DISCOVERY_INTERVAL);
+                if (interval < 1) {
+                    throw new IllegalArgumentException("interval must be positive");
+                }
+            } catch (IllegalArgumentException e) {
+                this.error(callbackCtx, e.getMessage(), 400);
+                return;
+            }
+        }
+
         try {
             if (bluetoothSerialService.isConnecting()) {
                 this.error(callbackCtx, "A Connection attempt is in progress.", 404);
@@ -251,7 +461,14 @@ public class BluetoothSerial extends CordovaPlugin {
                     }
                 }
 
-                bluetoothSerialService.startDiscovery();
+                // a new table for each discovery, ready before the first device is found
+                cancelDiscoveryReports();
+                discoveredDevices = new DiscoveredDevices();
+                discoveryReport = report;
+                if (report == REPORT_BATCH) {
+                    scheduleDiscoveryReports(interval);
+                }
+                bluetoothSerialService.startDiscovery(filter);
 
                 PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
                 result.setKeepCallback(true);
@@ -260,10 +477,42 @@ public class BluetoothSerial extends CordovaPlugin {
                 discoveryCallback = callbackCtx;
             }
         } catch (Exception e) {
+            cancelDiscoveryReports();
             this.error(callbackCtx, e.getMessage(), 404);
         }
     }
 
+    private synchronized void scheduleDiscoveryReports(int interval) {
+        discoveryFuture = scheduler.scheduleAtFixedRate(sendDiscoveryBatch, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void cancelDiscoveryReports() {
+        if (discoveryFuture != null) {
+            discoveryFuture.cancel(false);
+            discoveryFuture = null;
+        }
+    }
+
+    // Sends the devices seen since the last batch, if any
+    private final Runnable sendDiscoveryBatch = new Runnable() {
+        public void run() {
+            CallbackContext callback = discoveryCallback;
+            if (callback == null) {
+                return;
+            }
+            try {
+                JSONArray devices = discoveredDevices.takeChanges();
+                if (devices.length() > 0) {
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, devices);
+                    result.setKeepCallback(true);
+                    callback.sendPluginResult(result);
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Unable to send discovered devices", e);
+            }
+        }
+    };
+
 
     /**
      * Stop device discovery.
@@ -275,6 +524,7 @@ public class BluetoothSerial extends CordovaPlugin {
         try {
             if (bluetoothSerialService.isDiscovering()) {
                 _wasDiscoveryCanceled = true;
+                cancelDiscoveryReports();
                 bluetoothSerialService.stopDiscovery();
 
                 if (discoveryCallback != null) {
@@ -296,29 +546,123 @@ public class BluetoothSerial extends CordovaPlugin {
     }
 
     private void listBondedDevices(CallbackContext callbackContext) throws JSONException {
-        JSONArray deviceList = new JSONArray();
-        Set<BluetoothDevice> bondedDevices = bluetoothAdapter.getBondedDevices();
+        callbackContext.sendPluginResult(registry().getListResult());
+    }
+
+    /**
+     * The device registry, loaded from the adapter the first time it is used.
+     */
+    private DeviceRegistry registry() {
+        if (!deviceRegistry.isLoaded()) {
+            deviceRegistry.load(bluetoothAdapter.getBondedDevices());
+        }
+        return deviceRegistry;
+    }
 
-        for (BluetoothDevice device : bondedDevices) {
-            JSONObject json = new JSONObject();
-            json.put("name", device.getName());
-            json.put("address", device.getAddress());
-            json.put("id", device.getAddress());
-            if (device.getBluetoothClass() != null) {
-                json.put("class", device.getBluetoothClass().getDeviceClass());
+    /**
+     * Tell the device changes subscriber about a device.
+     *
+     * @param change "bondState" or "updated"
+     */
+    private void sendDeviceChange(String change, String name, String address, int deviceClass, int bondState) {
+        CallbackContext callback = deviceChangesCallback;
+        if (callback == null) {
+            return;
+        }
+        try {
+            JSONObject device = new JSONObject();
+            device.put("change", change);
+            device.put("name", name);
+            device.put("address", address);
+            device.put("id", address);
+            if (deviceClass != 0) {
+                device.put("class", deviceClass);
             }
-            deviceList.put(json);
+            device.put("bondState", bondState == BluetoothDevice.BOND_BONDED ? "bonded"
+                    : bondState == BluetoothDevice.BOND_BONDING ? "bonding" : "none");
+            PluginResult result = new PluginResult(PluginResult.Status.OK, device);
+            result.setKeepCallback(true);
+            callback.sendPluginResult(result);
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to send device change", e);
         }
-        callbackContext.success(deviceList);
     }
 
+    /**
+     * Connect to a device.
+     *
+     * @param args            The address of the device and optional options, {reconnect: {maxAttempts,
+     *                        baseDelay, maxDelay, jitter}} turns on automatic reconnect.
+     * @param secure          Use a secure RFCOMM socket.
+     * @param callbackContext Called on every successful connect, including reconnects.
+     */
     private void connect(CordovaArgs args, boolean secure, CallbackContext callbackContext) throws JSONException {
         String macAddress = args.getString(0);
-        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(macAddress);
 
-        if (device != null) {
-            connectCallback = callbackContext;
-            bluetoothSerialService.connect(device, secure);
+        BluetoothSerialService.ReconnectPolicy policy = null;
+        JSONObject options = args.optJSONObject(1);
+        JSONObject reconnect = options == null ? null : options.optJSONObject("reconnect");
+        if (reconnect != null) {
+            policy = new BluetoothSerialService.ReconnectPolicy(
+                    reconnect.optInt("maxAttempts", DEFAULT_RECONNECT_ATTEMPTS),
+                    reconnect.optLong("baseDelay", DEFAULT_RECONNECT_BASE_DELAY),
+                    reconnect.optLong("maxDelay", DEFAULT_RECONNECT_MAX_DELAY),
+                    reconnect.optDouble("jitter", DEFAULT_RECONNECT_JITTER));
+            if (policy.maxAttempts < 1 || policy.baseDelay < 0 || policy.maxDelay < policy.baseDelay) {
+                error(callbackContext, "Invalid reconnect options.", 400);
+                return;
+            }
+        }
+
+        BluetoothSerialService.LivenessPolicy liveness = null;
+        if (options != null) {
+            try {
+                liveness = livenessPolicy(options);
+            } catch (IllegalArgumentException e) {
+                error(callbackContext, e.getMessage(), 400);
+                return;
+            }
+        }
+
+        SerialTransport.Factory factory = null;
+        if (macAddress.startsWith(TcpTransport.SCHEME)) {
+            // a device simulator on the development machine
+            if (!tcpEnabled()) {
+                error(callbackContext, "tcp:// connections need the " + TCP_PREFERENCE + " preference.", 400);
+                return;
+            }
+            try {
+                factory = new TcpTransport.Factory(macAddress);
+            } catch (IllegalArgumentException e) {
+                error(callbackContext, e.getMessage(), 400);
+                return;
+            }
+        } else {
+            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(macAddress);
+            if (device != null) {
+                try {
+                    factory = rfcommFactory(device, secure, options);
+                } catch (IllegalArgumentException e) {
+                    error(callbackContext, e.getMessage(), 400);
+                    return;
+                }
+            }
+        }
+
+        if (factory != null) {
+            synchronized (this) {
+                // the session is only released while the service says the device is not connected
+                DeviceSession session = sessionForConnect(factory.getAddress());
+                session.setConnectCallback(callbackContext);
+                session.setReconnecting(false);
+                session.resetFraming();
+                defaultSession = session;
+                bluetoothSerialService.connect(factory, policy, liveness);
+                if (session.isThrottled()) {
+                    // the app has not caught up since the last connection
+                    bluetoothSerialService.setReadPaused(factory.getAddress(), true);
+                }
+            }
 
             PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
             result.setKeepCallback(true);
@@ -329,171 +673,968 @@ public class BluetoothSerial extends CordovaPlugin {
         }
     }
 
-    // The Handler that gets information back from the BluetoothSerialService
-    // Original code used handler for the because it was talking to the UI.
-    // Consider replacing with normal callbacks
-    private final Handler mHandler = new Handler() {
+    /**
+     * How to connect to a Bluetooth device. By default connect tries a secure
+     * socket and falls back to an insecure one, and connectInsecure only tries
+     * an insecure socket. The options can list the strategies to try instead,
+     * {strategies: ["insecure", "channel"], connectTimeout: 5000, channel: 1}.
+     *
+     * @throws IllegalArgumentException If the options are not valid.
+     */
+    private RfcommTransport.Factory rfcommFactory(BluetoothDevice device, boolean secure, JSONObject options) {
+        RfcommTransport.Cache cache = bluetoothSerialService.getConnectCache();
+        if (options == null) {
+            return new RfcommTransport.Factory(device, secure, cache);
+        }
 
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MESSAGE_READ:
-                    buffer.append((String) msg.obj);
+        List<String> strategies = RfcommTransport.defaultStrategies(secure);
+        JSONArray names = options.optJSONArray("strategies");
+        if (names != null) {
+            strategies = new ArrayList<String>();
+            for (int i = 0; i < names.length(); i++) {
+                strategies.add(names.optString(i));
+            }
+        }
 
-                    if (dataAvailableCallback != null) {
-                        sendDataToSubscriber();
-                    }
-                    break;
-                case MESSAGE_STATE_CHANGE:
-
-                    if (D) Log.i(TAG, "MESSAGE_STATE_CHANGE: " + msg.arg1);
-                    switch (msg.arg1) {
-                        case BluetoothSerialService.STATE_CONNECTED:
-                            Log.i(TAG, "BluetoothSerialService.STATE_CONNECTED");
-                            notifyConnectionSuccess();
-                            break;
-                        case BluetoothSerialService.STATE_CONNECTING:
-                            Log.i(TAG, "BluetoothSerialService.STATE_CONNECTING");
-                            break;
-                        case BluetoothSerialService.STATE_LISTEN:
-                            Log.i(TAG, "BluetoothSerialService.STATE_LISTEN");
-                            break;
-                        case BluetoothSerialService.STATE_NONE:
-                            Log.i(TAG, "BluetoothSerialService.STATE_NONE");
-                            break;
+        long timeout = options.optLong("connectTimeout", 0);
+        // 0 when not given, the channel that last worked is used
+        int channel = options.has("channel") ? options.optInt("channel", -1) : 0;
+        if (timeout < 0 || (options.has("channel") && (channel < 1 || channel > 30))) {
+            throw new IllegalArgumentException("Invalid connect options.");
+        }
+        return new RfcommTransport.Factory(device, strategies, timeout, channel, cache, scheduler);
+    }
+
+    /**
+     * How to tell the link to a device is dead, from the connect options
+     * {heartbeat: {data: "PING\n", reply: "PONG", interval: 2000}, idleTimeout: 6000}.
+     * The heartbeat data and reply are UTF-8 strings or arrays of byte values.
+     *
+     * @return null if the options have neither a heartbeat nor an idle timeout
+     * @throws IllegalArgumentException If the options are not valid.
+     */
+    private BluetoothSerialService.LivenessPolicy livenessPolicy(JSONObject options) {
+        JSONObject heartbeat = options.optJSONObject("heartbeat");
+        long idleTimeout = options.optLong("idleTimeout", 0);
+        if (heartbeat == null && idleTimeout == 0) {
+            return null;
+        }
+
+        byte[] data = null;
+        byte[] reply = null;
+        long interval = 0;
+        if (heartbeat != null) {
+            data = heartbeatBytes(heartbeat, "data");
+            reply = heartbeatBytes(heartbeat, "reply");
+            interval = heartbeat.optLong("interval", DEFAULT_HEARTBEAT_INTERVAL);
+            if (data == null || data.length == 0 || interval <= 0) {
+                throw new IllegalArgumentException("Invalid heartbeat options.");
+            }
+        }
+        if (idleTimeout < 0 || (idleTimeout > 0 && idleTimeout <= interval)) {
+            throw new IllegalArgumentException("idleTimeout must be longer than the heartbeat interval.");
+        }
+        return new BluetoothSerialService.LivenessPolicy(interval, data, reply,
+                heartbeat != null && heartbeat.optBoolean("consumeReply", false), idleTimeout);
+    }
+
+    private static byte[] heartbeatBytes(JSONObject heartbeat, String name) {
+        JSONArray values = heartbeat.optJSONArray(name);
+        if (values == null) {
+            String text = heartbeat.optString(name, null);
+            return text == null ? null : text.getBytes(Charset.forName("UTF-8"));
+        }
+        byte[] bytes = new byte[values.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            int value = values.optInt(i, -1);
+            if (value < 0 || value > 255) {
+                throw new IllegalArgumentException("Invalid heartbeat " + name + ".");
+            }
+            bytes[i] = (byte) value;
+        }
+        return bytes;
+    }
+
+    /**
+     * Subscribe to data split on a delimiter, or to binary frames when the
+     * options have a framing object.
+     *
+     * @param args            The delimiter, options and the optional device id.
+     * @param callbackContext Called with each frame.
+     */
+    private void subscribe(CordovaArgs args, CallbackContext callbackContext) throws JSONException {
+        JSONObject options = args.optJSONObject(1);
+        JSONObject framing = options == null ? null : options.optJSONObject("framing");
+        FrameDecoder decoder = null;
+        if (framing != null) {
+            try {
+                decoder = FrameDecoders.fromOptions(framing);
+            } catch (IllegalArgumentException e) {
+                error(callbackContext, "Invalid framing options: " + e.getMessage(), 400);
+                return;
+            }
+        } else if (args.isNull(0)) {
+            error(callbackContext, "A delimiter or framing options are required.", 400);
+            return;
+        }
+
+        String[] delimiters = null;
+        if (decoder == null) {
+            delimiters = delimiters(args, 0);
+            if (delimiters == null) {
+                error(callbackContext, "Delimiters must not be empty.", 400);
+                return;
+            }
+        }
+
+        // options with only framing don't turn on batching
+        if (options != null && !options.has("maxFrames") && !options.has("interval")) {
+            options = null;
+        }
+        DeviceSession session = session(args, 2, callbackContext, true);
+        if (session != null) {
+            // encode the delimiters the way the frames will be decoded
+            DelimiterMatcher matcher = delimiters == null ? null
+                    : DelimiterMatcher.forStrings(session.getCharset(), delimiters);
+            session.subscribe(matcher, options, decoder, callbackContext);
+        }
+    }
+
+    /**
+     * The delimiter at index in args, a string or an array of alternative strings.
+     *
+     * @return The delimiters, or null if there are none or one is empty.
+     */
+    private String[] delimiters(CordovaArgs args, int index) throws JSONException {
+        String[] delimiters;
+        JSONArray values = args.optJSONArray(index);
+        if (values != null) {
+            delimiters = new String[values.length()];
+            for (int i = 0; i < delimiters.length; i++) {
+                delimiters[i] = values.getString(i);
+            }
+        } else {
+            delimiters = new String[] { args.getString(index) };
+        }
+
+        if (delimiters.length == 0) {
+            return null;
+        }
+        for (String delimiter : delimiters) {
+            if (delimiter.length() == 0) {
+                return null;
+            }
+        }
+        return delimiters;
+    }
+
+    /**
+     * Disconnect from one device, or from every device when no id is given.
+     *
+     * @param args        The optional id of the device.
+     * @param callbackCtx Where to send results.
+     */
+    private void disconnect(CordovaArgs args, CallbackContext callbackCtx) {
+        if (args.isNull(0)) {
+            for (DeviceSession session : sessions.values()) {
+                session.setConnectCallback(null);
+                session.getTransactions().failAll("Disconnected.", 410);
+            }
+            for (Transfer transfer : transfers.values()) {
+                transfer.fail("Disconnected.", 410);
+            }
+            bluetoothSerialService.stop();
+        } else {
+            String address = args.optString(0);
+            DeviceSession session = sessions.get(address);
+            if (session != null) {
+                session.setConnectCallback(null);
+                session.getTransactions().failAll("Disconnected.", 410);
+            }
+            for (Transfer transfer : transfers.values()) {
+                if (transfer.getAddress().equals(address)) {
+                    transfer.fail("Disconnected.", 410);
+                }
+            }
+            bluetoothSerialService.stop(address);
+        }
+        callbackCtx.success();
+    }
+
+    /**
+     * Find the session to use for a new connection to address. The default
+     * session is claimed if it was never used, or was last used for the same
+     * device, so subscriptions made before connecting keep working.
+     */
+    private synchronized DeviceSession sessionForConnect(String address) {
+        DeviceSession session = sessions.get(address);
+        if (session == null) {
+            if (defaultSession.getAddress() == null || defaultSession.getAddress().equals(address)) {
+                session = defaultSession;
+                session.setAddress(address);
+            } else {
+                session = new DeviceSession(address, scheduler);
+            }
+            session.setFlowListener(flowListener);
+            sessions.put(address, session);
+        }
+        return session;
+    }
+
+    /**
+     * Forget the session of a device that is not connected once the app has
+     * unsubscribed from it and nothing is left in its buffer, so the sessions
+     * of devices that are gone don't pile up. Until then the session, with
+     * its data, stats and subscriptions, is kept for the next connect.
+     */
+    private synchronized void releaseSession(DeviceSession session) {
+        String address = session.getAddress();
+        if (address != null && sessions.get(address) == session && session.isIdle()
+                && bluetoothSerialService.getState(address) == BluetoothSerialService.STATE_NONE) {
+            sessions.remove(address);
+        }
+    }
+
+    /**
+     * The session for the device id at index in args, or the default session
+     * if there is no id. A device that has no session yet gets one, so it can
+     * be subscribed to and configured before it connects; with keep false it
+     * is an empty session that is not kept. An id that is not a device
+     * address is an error, sent to callbackContext.
+     *
+     * @param keep True for actions that set up the session, such as subscribe
+     * @return The session, or null if the id is not valid.
+     */
+    private DeviceSession session(CordovaArgs args, int index, CallbackContext callbackContext, boolean keep) {
+        if (args.isNull(index)) {
+            return defaultSession;
+        }
+        String address = args.optString(index);
+        DeviceSession session = sessions.get(address);
+        if (session == null) {
+            if (!isDeviceId(address)) {
+                this.error(callbackContext, "Unknown device.", 404);
+            } else if (keep) {
+                session = sessionForConnect(address);
+            } else {
+                session = new DeviceSession(address, scheduler);
+            }
+        }
+        return session;
+    }
+
+    /**
+     * True if id is a Bluetooth address, or names a device simulator.
+     */
+    private boolean isDeviceId(String id) {
+        return BluetoothAdapter.checkBluetoothAddress(id) || (id.startsWith(TcpTransport.SCHEME) && tcpEnabled());
+    }
+
+    /**
+     * True if the app's config.xml opts in to tcp:// connections, off by default.
+     */
+    private boolean tcpEnabled() {
+        return preferences != null && preferences.getBoolean(TCP_PREFERENCE, false);
+    }
+
+    /**
+     * The device id at index in args, or the address of the default session if there is no id.
+     */
+    private String address(CordovaArgs args, int index) {
+        return args.isNull(index) ? defaultSession.getAddress() : args.optString(index);
+    }
+
+    // Gets information back from the BluetoothSerialService. Methods are called
+    // directly on the service threads, received data never goes through the UI thread.
+    private final BluetoothSerialService.Listener serviceListener = new BluetoothSerialService.Listener() {
+
+        public void onRead(String address, byte[] data, int length) {
+            DeviceSession session = sessions.get(address);
+            if (session != null) {
+                session.onRead(data, length);
+            }
+        }
+
+        public void onStateChange(String address, int state) {
+            if (D) Log.i(TAG, "onStateChange: " + address + " " + state);
+            switch (state) {
+                case BluetoothSerialService.STATE_CONNECTED:
+                    Log.i(TAG, "BluetoothSerialService.STATE_CONNECTED");
+                    DeviceSession session = sessions.get(address);
+                    if (session != null) {
+                        session.notifyConnectionSuccess();
+                        sendConnected(address);
+                        if (session.isReconnecting()) {
+                            session.setReconnecting(false);
+                            sendEvent("reconnected", address);
+                        }
                     }
                     break;
-                case MESSAGE_WRITE:
-                    //  byte[] writeBuf = (byte[]) msg.obj;
-                    //  String writeMessage = new String(writeBuf);
-                    //  Log.i(TAG, "Wrote: " + writeMessage);
-                    break;
-                case MESSAGE_DEVICE_NAME:
-                    Log.i(TAG, msg.getData().getString(DEVICE_NAME));
+                case BluetoothSerialService.STATE_RECONNECTING:
+                    Log.i(TAG, "BluetoothSerialService.STATE_RECONNECTING");
                     break;
-                case MESSAGE_TOAST:
-                    String message = msg.getData().getString(TOAST);
-                    notifyConnectionLost(message);
+                case BluetoothSerialService.STATE_CONNECTING:
+                    Log.i(TAG, "BluetoothSerialService.STATE_CONNECTING");
                     break;
-                case MESSAGE_DISCOVERY_STARTED:
-                    _wasDiscoveryCanceled = false;
+                case BluetoothSerialService.STATE_LISTEN:
+                    Log.i(TAG, "BluetoothSerialService.STATE_LISTEN");
                     break;
-                case MESSAGE_DISCOVERY_FINISHED:
-                    if (!_wasDiscoveryCanceled) {
-                        if (discoveryCallback != null) {
-                            PluginResult result = new PluginResult(PluginResult.Status.OK, false);
-                            discoveryCallback.sendPluginResult(result);
-                            discoveryCallback = null;
-                        }
-                    }
+                case BluetoothSerialService.STATE_NONE:
+                    Log.i(TAG, "BluetoothSerialService.STATE_NONE");
                     break;
-                case MESSAGE_DEVICE_FOUND:
-                    try {
-                        String name = msg.getData().getString(DATA_DEVICE_NAME);
-                        String address = msg.getData().getString(DATA_DEVICE_ADDRESS);
-
-                        JSONObject device = new JSONObject();
-                        device.put("name", name);
-                        device.put("address", address);
-
-                        // Send one device at a time, keeping callback to be used again
-                        if (discoveryCallback != null) {
-                            PluginResult result = new PluginResult(PluginResult.Status.OK, device);
-                            result.setKeepCallback(true);
-                            discoveryCallback.sendPluginResult(result);
-                        } else {
-                            Log.e(TAG, "CallbackContext for discovery doesn't exist.");
-                        }
-                    } catch (JSONException e) {
-                        if (discoveryCallback != null) {
-                            BluetoothSerial.this.error(discoveryCallback,
-                                    e.getMessage(),
-                                    ERR_UNKNOWN
-                            );
-                            discoveryCallback = null;
-                        }
-                    }
+            }
+        }
 
-                    break;
+        public void onConnectionError(String address, String message) {
+            DeviceSession session = sessions.get(address);
+            if (session != null) {
+                session.setReconnecting(false);
+                session.notifyConnectionLost(message);
+            }
+        }
 
-                case MESSAGE_DEVICE_BONDED:
+        public void onReconnecting(String address, int attempt, long delay) {
+            DeviceSession session = sessions.get(address);
+            if (session != null) {
+                session.setReconnecting(true);
+                session.resetFraming();
+                session.getStats().reconnects.incrementAndGet();
+            }
+            try {
+                JSONObject event = new JSONObject();
+                event.put("attempt", attempt);
+                event.put("delay", delay);
+                sendEvent("reconnecting", address, event);
+            } catch (JSONException e) {
+                Log.e(TAG, "Unable to send reconnecting event", e);
+            }
+        }
 
-                    try {
-                        String name = msg.getData().getString(DATA_DEVICE_NAME);
-                        String address = msg.getData().getString(DATA_DEVICE_ADDRESS);
+        public void onWrite(String address, int lane, List<Object> tokens, int queued, int bytes, long waitNanos) {
+            // tokens are the callbacks of the writes sent in one socket write, transactions wait for their response.
+            // Heartbeats are written by the service itself, with no token, and are not the app's writes.
+            int appWrites = 0;
+            for (Object token : tokens) {
+                if (token instanceof CallbackContext) {
+                    ((CallbackContext) token).success(queued);
+                } else if (token instanceof Transfer.Chunk) {
+                    ((Transfer.Chunk) token).onSent();
+                }
+                if (token != null) {
+                    appWrites++;
+                }
+            }
 
-                        JSONObject bondedDevice = new JSONObject();
-                        bondedDevice.put("name", name);
-                        bondedDevice.put("address", address);
+            DeviceSession session = sessions.get(address);
+            if (session != null && appWrites > 0) {
+                session.getStats().onWrite(lane, appWrites, bytes, waitNanos);
+            }
+            if (session != null ? session.onWriteQueueDepth(queued, appWrites > 0) : appWrites > 0 && queued == 0) {
+                sendEvent("writeDrained", address);
+            }
+        }
 
-                        if (pairingCallback != null) {
-                            pairingCallback.success(bondedDevice);
-                            pairingCallback = null;
-                        } else {
-                            Log.e(TAG, "CallbackContext for pairing doesn't exist.");
+        public void onWriteFailed(String address, Object token) {
+            DeviceSession session = sessions.get(address);
+            if (session != null) {
+                session.getStats().writeFailures.incrementAndGet();
+            }
+            if (token instanceof Transactions.Transaction) {
+                if (session != null) {
+                    session.getTransactions().fail((Transactions.Transaction) token, "Write failed.", 500);
+                }
+            } else if (token instanceof Transfer.Chunk) {
+                ((Transfer.Chunk) token).onWriteFailed();
+            } else if (token != null) {
+                ((CallbackContext) token).error("Write failed.");
+            }
+        }
+
+        public void onHeartbeat(String address, long rttNanos) {
+            DeviceSession session = sessions.get(address);
+            if (session != null) {
+                session.getStats().heartbeatTime.record(rttNanos / 1000);
+            }
+        }
+
+        public void onLinkTimeout(String address, long idleMillis) {
+            DeviceSession session = sessions.get(address);
+            if (session != null) {
+                session.getStats().linkTimeouts.incrementAndGet();
+            }
+            try {
+                sendEvent("linkTimeout", address, new JSONObject().put("idle", idleMillis));
+            } catch (JSONException e) {
+                Log.e(TAG, "Unable to send linkTimeout event", e);
+            }
+        }
+
+        public void onDiscoveryStarted() {
+            _wasDiscoveryCanceled = false;
+        }
+
+        public void onDiscoveryFinished() {
+            if (!_wasDiscoveryCanceled) {
+                cancelDiscoveryReports();
+                if (discoveryCallback != null) {
+                    PluginResult result;
+                    if (discoveryReport == REPORT_FINAL) {
+                        try {
+                            result = new PluginResult(PluginResult.Status.OK, discoveredDevices.toJSON());
+                        } catch (JSONException e) {
+                            result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
                         }
-                    } catch (Exception e) {
-                        if (pairingCallback != null) {
-                            BluetoothSerial.this.error(pairingCallback,
-                                    e.getMessage(), 500
-                            );
-                            pairingCallback = null;
+                    } else {
+                        if (discoveryReport == REPORT_BATCH) {
+                            sendDiscoveryBatch.run();
                         }
+                        result = new PluginResult(PluginResult.Status.OK, false);
                     }
+                    discoveryCallback.sendPluginResult(result);
+                    discoveryCallback = null;
+                }
+            }
+        }
 
-                    break;
+        public void onDeviceFound(String name, String address, int deviceClass, int rssi) {
+            if (deviceRegistry.onSeen(name, address, deviceClass)) {
+                sendDeviceChange("updated", name, address, deviceClass, BluetoothDevice.BOND_BONDED);
+            }
+
+            // repeat sightings are merged into the table, batches and the final list are sent from it
+            boolean first = discoveredDevices.onFound(name, address, deviceClass, rssi, System.currentTimeMillis());
+            if (!first || discoveryReport != REPORT_EACH) {
+                return;
+            }
+            try {
+                JSONObject device = discoveredDevices.get(address);
+
+                // Send one device at a time, keeping callback to be used again
+                if (discoveryCallback != null) {
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, device);
+                    result.setKeepCallback(true);
+                    discoveryCallback.sendPluginResult(result);
+                } else {
+                    Log.e(TAG, "CallbackContext for discovery doesn't exist.");
+                }
+            } catch (JSONException e) {
+                if (discoveryCallback != null) {
+                    BluetoothSerial.this.error(discoveryCallback,
+                            e.getMessage(),
+                            ERR_UNKNOWN
+                    );
+                    discoveryCallback = null;
+                }
+            }
+        }
+
+        public void onBondStateChanged(String name, String address, int deviceClass, int bondState) {
+            deviceRegistry.onBondStateChanged(name, address, deviceClass, bondState);
+            sendDeviceChange("bondState", name, address, deviceClass, bondState);
+        }
 
+        public void onAdapterStateChanged(int state) {
+            if (state == BluetoothAdapter.STATE_ON) {
+                // the bonded devices can't be read while Bluetooth is off, load them again now it is on
+                deviceRegistry.invalidate();
+            }
+        }
+
+        public void onDeviceBonded(String name, String address) {
+            try {
+                JSONObject bondedDevice = new JSONObject();
+                bondedDevice.put("name", name);
+                bondedDevice.put("address", address);
+
+                if (pairingCallback != null) {
+                    pairingCallback.success(bondedDevice);
+                    pairingCallback = null;
+                } else {
+                    Log.e(TAG, "CallbackContext for pairing doesn't exist.");
+                }
+            } catch (Exception e) {
+                if (pairingCallback != null) {
+                    BluetoothSerial.this.error(pairingCallback,
+                            e.getMessage(), 500
+                    );
+                    pairingCallback = null;
+                }
             }
         }
     };
 
-    private void notifyConnectionLost(String error) {
-        if (connectCallback != null) {
-            connectCallback.error(error);
-            connectCallback = null;
+    // Stops reading a device while the app lags behind, the device is held back by RFCOMM flow control
+    private final DeviceSession.FlowListener flowListener = new DeviceSession.FlowListener() {
+
+        public void onThrottle(DeviceSession session, int buffered) {
+            bluetoothSerialService.setReadPaused(session.getAddress(), true);
+            sendFlowEvent("throttled", session, buffered);
         }
-        if (dataAvailableCallback != null) {
-            dataAvailableCallback.error(error);
+
+        public void onResume(DeviceSession session, int buffered) {
+            bluetoothSerialService.setReadPaused(session.getAddress(), false);
+            sendFlowEvent("resumed", session, buffered);
         }
+
+        private void sendFlowEvent(String type, DeviceSession session, int buffered) {
+            try {
+                JSONObject event = new JSONObject();
+                event.put("buffered", buffered);
+                sendEvent(type, session.getAddress(), event);
+            } catch (JSONException e) {
+                Log.e(TAG, "Unable to send " + type + " event", e);
+            }
+        }
+    };
+
+    /**
+     * The stats of every device, with the service-wide counters.
+     */
+    private JSONObject getStats() throws JSONException {
+        JSONArray devices = new JSONArray();
+        for (DeviceSession session : sessions.values()) {
+            devices.put(getStats(session));
+        }
+        JSONObject stats = new JSONObject();
+        stats.put("readBufferExhausted", bluetoothSerialService.getReadBufferExhaustedCount());
+        stats.put("devices", devices);
+        return stats;
     }
 
-    private void notifyConnectionSuccess() {
-        if (connectCallback != null) {
-            PluginResult result = new PluginResult(PluginResult.Status.OK);
-            result.setKeepCallback(true);
-            connectCallback.sendPluginResult(result);
+    private JSONObject getStats(DeviceSession session) throws JSONException {
+        JSONObject stats = session.getStatsJSON();
+        JSONObject connect = connectJSON(session.getAddress());
+        if (connect != null) {
+            stats.put("connect", connect);
         }
+        stats.put("connected", bluetoothSerialService.getState(session.getAddress()) == BluetoothSerialService.STATE_CONNECTED);
+        stats.put("writeQueueDepth", bluetoothSerialService.getWriteQueueDepth(session.getAddress()));
+        stats.put("controlQueueDepth", bluetoothSerialService.getWriteQueueDepth(session.getAddress(),
+                BluetoothSerialService.LANE_CONTROL));
+        stats.put("bulkQueueDepth", bluetoothSerialService.getWriteQueueDepth(session.getAddress(),
+                BluetoothSerialService.LANE_BULK));
+        return stats;
     }
 
-    private void sendDataToSubscriber() {
-        String data = readUntil(delimiter);
-        if (data != null && data.length() > 0) {
-            PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+    /**
+     * Send the stats to callbackContext every interval milliseconds, replacing
+     * any previous stats subscription. An interval of 0 stops sending.
+     */
+    private synchronized void subscribeStats(int interval, CallbackContext callbackContext) {
+        if (statsFuture != null) {
+            statsFuture.cancel(false);
+            statsFuture = null;
+        }
+        statsCallback = callbackContext;
+        if (interval > 0) {
+            statsFuture = scheduler.scheduleAtFixedRate(sendStats, interval, interval, TimeUnit.MILLISECONDS);
+
+            PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
             result.setKeepCallback(true);
-            dataAvailableCallback.sendPluginResult(result);
+            callbackContext.sendPluginResult(result);
+        }
+    }
+
+    private final Runnable sendStats = new Runnable() {
+        public void run() {
+            synchronized (BluetoothSerial.this) {
+                if (statsCallback == null) {
+                    return;
+                }
+                try {
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, getStats());
+                    result.setKeepCallback(true);
+                    statsCallback.sendPluginResult(result);
+                } catch (JSONException e) {
+                    Log.e(TAG, "Unable to send stats", e);
+                }
+            }
+        }
+    };
+
+    /**
+     * Tell the events subscriber which strategy connected to a Bluetooth
+     * device and how long each strategy tried took.
+     */
+    private void sendConnected(String address) {
+        try {
+            JSONObject connect = connectJSON(address);
+            if (connect != null) {
+                sendEvent("connected", address, connect);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to send connected event", e);
+        }
+    }
+
+    /**
+     * The strategies tried by the last connect to the device,
+     * {strategy: "insecure", attempts: [{strategy, time, error}]}, or null
+     * if it was never connected over RFCOMM.
+     */
+    private JSONObject connectJSON(String address) throws JSONException {
+        List<RfcommTransport.Attempt> attempts = bluetoothSerialService.getConnectCache().getAttempts(address);
+        if (attempts == null) {
+            return null;
+        }
+        JSONObject json = new JSONObject();
+        JSONArray tried = new JSONArray();
+        for (RfcommTransport.Attempt attempt : attempts) {
+            JSONObject item = new JSONObject();
+            item.put("strategy", attempt.strategy);
+            item.put("time", attempt.millis);
+            if (attempt.error == null) {
+                json.put("strategy", attempt.strategy);
+            } else {
+                item.put("error", attempt.error);
+            }
+            tried.put(item);
+        }
+        json.put("attempts", tried);
+        return json;
+    }
+
+    private void sendEvent(String type, String address) {
+        sendEvent(type, address, new JSONObject());
+    }
+
+    /**
+     * Send an event to the events subscriber.
+     *
+     * @param event Extra fields for the event, type and id are added to it
+     */
+    private void sendEvent(String type, String address, JSONObject event) {
+        CallbackContext callback = eventCallback;
+        if (callback != null) {
+            try {
+                event.put("type", type);
+                event.put("id", address);
+                PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+                result.setKeepCallback(true);
+                callback.sendPluginResult(result);
+            } catch (JSONException e) {
+                Log.e(TAG, "Unable to send event " + type, e);
+            }
+        }
+    }
+
+    /**
+     * Write a String or an ArrayBuffer to the connected device.
+     *
+     * @param args        The data, the name of the charset used to encode a String, the optional device id
+     *                    and the optional priority, "control" or "bulk". The charset is null when the data is
+     *                    an ArrayBuffer.
+     * @param callbackCtx Where to send results.
+     */
+    private void write(CordovaArgs args, CallbackContext callbackCtx) throws JSONException {
+        String address = address(args, 2);
+        byte[] data;
+        int lane;
+        try {
+            lane = lane(args.isNull(3) ? null : args.getString(3));
+        } catch (IllegalArgumentException e) {
+            this.error(callbackCtx, e.getMessage(), 400);
+            return;
+        }
+
+        if (args.isNull(1)) {
+            data = args.getArrayBuffer(0);
+        } else {
+            try {
+                data = args.getString(0).getBytes(Charset.forName(args.getString(1)));
+            } catch (IllegalArgumentException e) {
+                this.error(callbackCtx, "Unsupported charset " + args.getString(1), 400);
+                return;
+            }
+        }
+
+        // callbackCtx is notified once the data has actually been written
+        if (!bluetoothSerialService.write(address, data, callbackCtx, lane)) {
+            if (bluetoothSerialService.getState(address) == BluetoothSerialService.STATE_CONNECTED) {
+                this.error(callbackCtx, "Write queue is full.", 503);
+            } else {
+                this.error(callbackCtx, "Not connected.", 404);
+            }
+        }
+    }
+
+    /**
+     * The write lane for a priority, bulk if it is null.
+     *
+     * @throws IllegalArgumentException If the priority is unknown.
+     */
+    private int lane(String priority) {
+        if (priority == null || priority.equals("bulk")) {
+            return BluetoothSerialService.LANE_BULK;
+        } else if (priority.equals("control")) {
+            return BluetoothSerialService.LANE_CONTROL;
+        }
+        throw new IllegalArgumentException("Unknown priority " + priority);
+    }
+
+    /**
+     * Write a request and call back with the response, without a round trip
+     * through JavaScript. Several transactions may be pending at once.
+     *
+     * @param args        The request as a String or an ArrayBuffer, the charset of a String request, the
+     *                    options and the optional device id. The options have a delimiter (a string or an
+     *                    array of alternatives) that ends a text response, or framing options for a binary
+     *                    response, and optionally a correlation, a timeout in milliseconds and a priority.
+     * @param callbackCtx Called with the response.
+     */
+    private void transact(CordovaArgs args, CallbackContext callbackCtx) throws JSONException {
+        String address = address(args, 3);
+        DeviceSession session = session(args, 3, callbackCtx, false);
+        if (session == null) {
+            return;
+        }
+        JSONObject options = args.optJSONObject(2);
+        if (options == null) {
+            this.error(callbackCtx, "transact needs a delimiter or framing option.", 400);
+            return;
+        }
+
+        byte[] data;
+        Charset charset = session.getCharset();
+        FrameDecoder decoder;
+        Transactions.Correlation correlation = null;
+        long timeout = options.optLong("timeout", Transactions.DEFAULT_TIMEOUT);
+        int lane;
+        try {
+            lane = lane(options.optString("priority", null));
+            if (args.isNull(1)) {
+                data = args.getArrayBuffer(0);
+            } else {
+                charset = Charset.forName(args.getString(1));
+                data = args.getString(0).getBytes(charset);
+            }
+
+            decoder = FrameDecoders.fromOptions(responseFraming(options, "transact"));
+
+            JSONObject correlationOptions = options.optJSONObject("correlation");
+            if (correlationOptions != null) {
+                correlation = Transactions.correlationFromOptions(correlationOptions, charset);
+            }
+            if (timeout <= 0) {
+                throw new IllegalArgumentException("timeout must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            this.error(callbackCtx, e.getMessage(), 400);
+            return;
+        }
+
+        // wait for the response before writing, so a fast response is not missed
+        Transactions transactions = session.getTransactions();
+        Transactions.Transaction transaction = transactions.add(data, decoder, correlation,
+                options.has("framing") ? null : charset, timeout, callbackCtx);
+        if (!bluetoothSerialService.write(address, data, transaction, lane)) {
+            if (bluetoothSerialService.getState(address) == BluetoothSerialService.STATE_CONNECTED) {
+                transactions.fail(transaction, "Write queue is full.", 503);
+            } else {
+                transactions.fail(transaction, "Not connected.", 404);
+            }
+        }
+    }
+
+    /**
+     * The framing options of a response: options.framing, or a text response
+     * ending with one of the delimiters in options.delimiter.
+     *
+     * @throws IllegalArgumentException If there is neither.
+     */
+    private JSONObject responseFraming(JSONObject options, String action) throws JSONException {
+        JSONObject framing = options.optJSONObject("framing");
+        if (framing != null) {
+            return framing;
+        }
+        JSONArray delimiters = options.optJSONArray("delimiter");
+        if (delimiters == null) {
+            delimiters = new JSONArray().put(options.optString("delimiter", ""));
+        }
+        for (int i = 0; i < delimiters.length(); i++) {
+            if (delimiters.optString(i).length() == 0) {
+                throw new IllegalArgumentException(action + " needs a delimiter or framing option.");
+            }
+        }
+        return new JSONObject().put("type", "delimiter").put("delimiters", delimiters);
+    }
+
+    /**
+     * Start a streaming write to a device. The data is read from a local
+     * file, or pushed with writeTransfer and ended with endTransfer.
+     *
+     * @param args        The options and the optional device id. The options have chunkSize, window (chunks in
+     *                    flight), interval (milliseconds between chunks), an ack with a delimiter or framing
+     *                    that ends each acknowledgement, ackTimeout, and either path, a local file, or size and
+     *                    bufferSize for pushed data.
+     * @param callbackCtx Called with the progress, first with the transfer id, until the transfer completes.
+     */
+    private void startTransfer(CordovaArgs args, final CallbackContext callbackCtx) throws JSONException {
+        String address = address(args, 1);
+        DeviceSession session = session(args, 1, callbackCtx, false);
+        if (session == null) {
+            return;
+        }
+        JSONObject options = args.optJSONObject(0);
+        if (options == null) {
+            options = new JSONObject();
+        }
+        if (bluetoothSerialService.getState(address) != BluetoothSerialService.STATE_CONNECTED) {
+            this.error(callbackCtx, "Not connected.", 404);
+            return;
+        }
+
+        Transfer transfer = new Transfer(nextTransferId.getAndIncrement(), address, bluetoothSerialService,
+                session.getTransactions(), scheduler, new Transfer.Listener() {
+            public void onProgress(Transfer transfer) {
+                sendTransferResult(transfer, callbackCtx, true);
+            }
+
+            public void onComplete(Transfer transfer) {
+                transfers.remove(transfer.getId());
+                sendTransferResult(transfer, callbackCtx, false);
+            }
+
+            public void onError(Transfer transfer, String message, int code) {
+                transfers.remove(transfer.getId());
+                BluetoothSerial.this.error(callbackCtx, message, code);
+            }
+        });
 
-            sendDataToSubscriber();
+        try {
+            transfer.setChunking(options.optInt("chunkSize", Transfer.DEFAULT_CHUNK_SIZE),
+                    options.optInt("window", Transfer.DEFAULT_WINDOW), options.optLong("interval", 0));
+            JSONObject ack = options.optJSONObject("ack");
+            if (ack != null) {
+                transfer.setAck(responseFraming(ack, "ack"), options.optLong("ackTimeout", Transactions.DEFAULT_TIMEOUT));
+            }
+            String path = options.optString("path", null);
+            if (path != null) {
+                File file = new File(path.startsWith("file://") ? path.substring("file://".length()) : path);
+                transfer.setInput(new FileInputStream(file), file.length());
+            } else {
+                transfer.setSize(options.optLong("size", -1), options.optInt("bufferSize", Transfer.DEFAULT_BUFFER_SIZE));
+            }
+        } catch (IllegalArgumentException e) {
+            this.error(callbackCtx, e.getMessage(), 400);
+            return;
+        } catch (FileNotFoundException e) {
+            this.error(callbackCtx, "Unable to open " + options.optString("path") + ".", 404);
+            return;
         }
+
+        transfers.put(transfer.getId(), transfer);
+        sendTransferResult(transfer, callbackCtx, true);
+        transfer.start();
     }
 
-    private int available() {
-        return buffer.length();
+    private void sendTransferResult(Transfer transfer, CallbackContext callbackCtx, boolean keepCallback) {
+        try {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, transfer.toJSON());
+            result.setKeepCallback(keepCallback);
+            callbackCtx.sendPluginResult(result);
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to send transfer progress", e);
+        }
     }
 
-    private String read() {
-        int length = buffer.length();
-        String data = buffer.substring(0, length);
-        buffer.delete(0, length);
-        return data;
+    /**
+     * Push the next piece of a transfer's data.
+     *
+     * @param args        The transfer id, the data as a String or an ArrayBuffer and the charset of a String.
+     * @param callbackCtx Called once the transfer can take more data.
+     */
+    private void writeTransfer(CordovaArgs args, CallbackContext callbackCtx) throws JSONException {
+        Transfer transfer = transfers.get(args.getInt(0));
+        if (transfer == null) {
+            this.error(callbackCtx, "Unknown transfer.", 404);
+            return;
+        }
+
+        byte[] data;
+        if (args.isNull(2)) {
+            data = args.getArrayBuffer(1);
+        } else {
+            try {
+                data = args.getString(1).getBytes(Charset.forName(args.getString(2)));
+            } catch (IllegalArgumentException e) {
+                this.error(callbackCtx, "Unsupported charset " + args.getString(2), 400);
+                return;
+            }
+        }
+        transfer.write(data, callbackCtx);
     }
 
-    private String readUntil(String c) {
-        String data = "";
-        int index = buffer.indexOf(c, 0);
-        if (index > -1) {
-            data = buffer.substring(0, index + c.length());
-            buffer.delete(0, index + c.length());
+    /**
+     * Configure the write queues, write coalescing and the chunk size of bulk writes.
+     *
+     * @param args        An options object with queueSize, coalesceWindow (milliseconds), coalesceSize and
+     *                    chunkSize (bytes).
+     * @param callbackCtx Where to send results.
+     */
+    private void configureWrite(CordovaArgs args, CallbackContext callbackCtx) throws JSONException {
+        JSONObject options = args.getJSONObject(0);
+
+        int queueSize = options.optInt("queueSize", BluetoothSerialService.DEFAULT_WRITE_QUEUE_SIZE);
+        int coalesceWindow = options.optInt("coalesceWindow", 0);
+        int coalesceSize = options.optInt("coalesceSize", BluetoothSerialService.DEFAULT_COALESCE_SIZE);
+        int chunkSize = options.optInt("chunkSize", BluetoothSerialService.DEFAULT_WRITE_CHUNK_SIZE);
+
+        if (queueSize < 1 || coalesceWindow < 0 || coalesceSize < 1 || chunkSize < 1) {
+            this.error(callbackCtx, "Invalid write options.", 400);
+            return;
+        }
+
+        bluetoothSerialService.setWriteQueueSize(queueSize);
+        bluetoothSerialService.setWriteCoalescing(coalesceWindow, coalesceSize);
+        bluetoothSerialService.setWriteChunkSize(chunkSize);
+        callbackCtx.success();
+    }
+
+    /**
+     * Set the maximum size of the receive buffer, what to do when it fills up and when to pause reading.
+     *
+     * @param args        An options object with maxSize, overflow ("dropOldest", "dropNewest" or "error"),
+     *                    highWaterMark, lowWaterMark and charset, and the optional device id.
+     * @param callbackCtx Where to send results.
+     */
+    private void configureBuffer(CordovaArgs args, CallbackContext callbackCtx) throws JSONException {
+        JSONObject options = args.getJSONObject(0);
+        DeviceSession session = session(args, 1, callbackCtx, true);
+        if (session == null) {
+            return;
+        }
+        ByteRingBuffer buffer = session.getBuffer();
+
+        try {
+            if (options.has("maxSize")) {
+                buffer.setMaxSize(options.getInt("maxSize"));
+            }
+
+            String overflow = options.optString("overflow", null);
+            if ("dropOldest".equals(overflow)) {
+                buffer.setOverflowPolicy(ByteRingBuffer.OVERFLOW_DROP_OLDEST);
+            } else if ("dropNewest".equals(overflow)) {
+                buffer.setOverflowPolicy(ByteRingBuffer.OVERFLOW_DROP_NEWEST);
+            } else if ("error".equals(overflow)) {
+                buffer.setOverflowPolicy(ByteRingBuffer.OVERFLOW_ERROR);
+            } else if (overflow != null) {
+                throw new IllegalArgumentException("Unknown overflow policy " + overflow);
+            }
+
+            if (options.has("highWaterMark") || options.has("lowWaterMark")) {
+                int highWaterMark = options.optInt("highWaterMark", 0);
+                session.setWaterMarks(highWaterMark, options.optInt("lowWaterMark", highWaterMark / 2));
+            }
+
+            if (options.has("charset")) {
+                session.setCharset(Charset.forName(options.getString("charset")));
+            }
+
+            callbackCtx.success();
+        } catch (IllegalArgumentException e) {
+            this.error(callbackCtx, e.getMessage(), 400);
         }
-        return data.toString();
     }
 
     private void error(CallbackContext ctx, String msg, int code) {
@@ -1,6 +1,7 @@
 package com.megster.cordova;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
@@ -8,30 +9,40 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
-import java.util.UUID;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * thread for performing data transmissions when connected. Several
+ * devices can be connected at the same time, each connection has its
+ * own threads and is identified by the address of the remote device.
+ * The threads read and write through a SerialTransport, RFCOMM for
+ * Bluetooth devices, so the same code runs over TCP or in memory.
  * <p/>
  * This code was based on the Android SDK BluetoothChat Sample
  * $ANDROID_SDK/samples/android-17/BluetoothChat
  */
 public class BluetoothSerialService {
 
-    private OutputStream _mmOutStream;
-
     // Debugging
     private static final String TAG = "BluetoothSerialService";
     private static final boolean D = true;
@@ -39,36 +50,149 @@ public class BluetoothSerialService {
     // Name for the SDP record when creating server socket
     private static final String NAME_SECURE = "PhoneGapBluetoothSerialServiceSecure";
     private static final String NAME_INSECURE = "PhoneGapBluetoothSerialServiceInSecure";
-    // Well known SPP UUID
-    private static final UUID UUID_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
     // Member fields
     private final BluetoothAdapter mAdapter;
-    private final Handler mHandler;
+    private final Listener mListener;
     private AcceptThread mSecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    private final Map<String, Connection> mConnections = new HashMap<String, Connection>();
+    private int mWriteQueueSize = DEFAULT_WRITE_QUEUE_SIZE;
+    private volatile int mCoalesceWindow;  // milliseconds, 0 disables write coalescing
+    private volatile int mCoalesceSize = DEFAULT_COALESCE_SIZE;
+    private volatile int mChunkSize = DEFAULT_WRITE_CHUNK_SIZE;
+    private volatile DiscoveryFilter mDiscoveryFilter;
+    private final Random mRandom = new Random();
+    private final BufferPool mReadBuffers = new BufferPool(DEFAULT_READ_SIZE, READ_BUFFERS_POOLED);
+    private final RfcommTransport.Cache mConnectCache = new RfcommTransport.Cache();
+
+    // listener calls made while holding this monitor, made in order once it is released
+    private final Queue<Runnable> mEvents = new ArrayDeque<Runnable>();
+    private boolean mDispatching;  // guarded by this
+
+    // Maximum number of writes waiting to be sent on a connection
+    public static final int DEFAULT_WRITE_QUEUE_SIZE = 64;
+    // Largest socket write built by coalescing small writes
+    public static final int DEFAULT_COALESCE_SIZE = 512;
+    // Bulk writes are sent in chunks of this size, control writes go out between chunks
+    public static final int DEFAULT_WRITE_CHUNK_SIZE = 1024;
+    // Size of the buffer each connection reads into
+    public static final int DEFAULT_READ_SIZE = 1024;
+    // Read buffers kept for reuse, enough for a few simultaneous connections
+    private static final int READ_BUFFERS_POOLED = 4;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_LISTEN = 1;     // now listening for incoming connections
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_RECONNECTING = 4; // connection lost, waiting to connect again
+
+    // Write lanes, control writes are sent before any queued bulk writes
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_BULK = 1;
 
     private Context ctx;
 
+    /**
+     * Receives the events of a BluetoothSerialService. Methods are called
+     * directly on the thread that produced the event: the connection threads
+     * for data, state and write events and the main thread for discovery and
+     * bonding broadcasts. They are never called while the service monitor
+     * is held. Implementations must be thread safe.
+     */
+    public interface Listener {
+
+        /**
+         * Data was received from the device at address. The array is reused
+         * for the next read, so it must not be kept after this method returns.
+         */
+        void onRead(String address, byte[] data, int length);
+
+        void onStateChange(String address, int state);
+
+        /**
+         * The connection attempt failed or the connection was lost.
+         */
+        void onConnectionError(String address, String message);
+
+        /**
+         * The connection was lost and will be attempted again after delay
+         * milliseconds. Received data and queued writes are kept.
+         */
+        void onReconnecting(String address, int attempt, long delay);
+
+        /**
+         * Queued writes were sent in a single socket write. The list is reused,
+         * so it must not be kept after this method returns.
+         *
+         * @param lane      The lane the writes were queued on, LANE_CONTROL or LANE_BULK
+         * @param tokens    The tokens given to {@link #write(String, byte[], Object, int)}
+         * @param queued    The number of writes still queued in both lanes
+         * @param bytes     The number of bytes written
+         * @param waitNanos How long the first of the writes waited in the queue
+         */
+        void onWrite(String address, int lane, List<Object> tokens, int queued, int bytes, long waitNanos);
+
+        void onWriteFailed(String address, Object token);
+
+        void onDiscoveryStarted();
+
+        void onDiscoveryFinished();
+
+        /**
+         * A device matching the discovery filter was seen. It may be seen
+         * more than once during a discovery.
+         *
+         * @param name        The device name, null if it has none
+         * @param deviceClass The device class, as in BluetoothClass, 0 if unknown
+         * @param rssi        The signal strength in dBm, DiscoveryFilter.RSSI_UNKNOWN if unknown
+         */
+        void onDeviceFound(String name, String address, int deviceClass, int rssi);
+
+        void onDeviceBonded(String name, String address);
+
+        /**
+         * The bond state of a device changed.
+         *
+         * @param deviceClass The device class, as in BluetoothClass, 0 if unknown
+         * @param bondState   As in BluetoothDevice
+         */
+        void onBondStateChanged(String name, String address, int deviceClass, int bondState);
+
+        /**
+         * Bluetooth was turned on or off.
+         *
+         * @param state As in BluetoothAdapter, e.g. STATE_ON
+         */
+        void onAdapterStateChanged(int state);
+
+        /**
+         * The heartbeat reply was received.
+         *
+         * @param rttNanos The time from sending the heartbeat to receiving the reply
+         */
+        void onHeartbeat(String address, long rttNanos);
+
+        /**
+         * Nothing was read for longer than the idle timeout of the connection's
+         * LivenessPolicy. The link is closed right after this call, and lost
+         * as if the read had failed.
+         *
+         * @param idleMillis The time since the last read
+         */
+        void onLinkTimeout(String address, long idleMillis);
+    }
+
     /**
      * Constructor. Prepares a new BluetoothSerial session.
      *
-     * @param handler A Handler to send messages back to the UI Activity
+     * @param listener Receives the events of this service
      */
-    public BluetoothSerialService(Context ctx, Handler handler) {
+    public BluetoothSerialService(Context ctx, Listener listener) {
         this.ctx = ctx;
         mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mHandler = handler;
+        mListener = listener;
 
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
         ctx.registerReceiver(_receiver, filter);
@@ -81,50 +205,96 @@ public class BluetoothSerialService {
 
         filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         ctx.registerReceiver(_receiver, filter);
+
+        filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
+        ctx.registerReceiver(_receiver, filter);
     }
 
     /**
-     * Set the current state of the chat connection
+     * Set the current state of a connection
      *
-     * @param state An integer defining the current connection state
+     * @param connection The connection that changed
+     * @param state      An integer defining the current connection state
      */
-    private synchronized void setState(int state) {
-        if (D) Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
-
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(BluetoothSerial.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    private synchronized void setState(Connection connection, final int state) {
+        if (D) Log.d(TAG, "setState() " + connection.mmAddress + " " + connection.mmState + " -> " + state);
+        connection.mmState = state;
+
+        // Give the new state to the listener
+        final String address = connection.mmAddress;
+        post(new Runnable() {
+            public void run() {
+                mListener.onStateChange(address, state);
+            }
+        });
     }
 
     /**
-     * Return the current connection state.
+     * Queue a listener call made while holding this monitor. Listeners send
+     * results and take their own locks, so they are only called once the
+     * monitor has been released, by dispatchEvents().
      */
-    public synchronized int getState() {
-        return mState;
+    private synchronized void post(Runnable event) {
+        mEvents.add(event);
     }
 
     /**
-     * Start the chat service. Specifically start AcceptThread to begin a
-     * session in listening (server) mode. Called by the Activity onResume()
+     * Make the queued listener calls, unless the calling thread still holds
+     * this monitor. Only one thread dispatches at a time so the calls are
+     * made in the order they were queued.
      */
-    public synchronized void start() {
-        if (D) Log.d(TAG, "start");
-
-        // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    private void dispatchEvents() {
+        if (Thread.holdsLock(this)) {
+            return;
         }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        synchronized (this) {
+            if (mDispatching) {
+                // the dispatching thread makes our calls too
+                return;
+            }
+            mDispatching = true;
         }
+        try {
+            while (true) {
+                Runnable event;
+                synchronized (this) {
+                    event = mEvents.poll();
+                    if (event == null) {
+                        mDispatching = false;
+                        return;
+                    }
+                }
+                event.run();
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                mDispatching = false;
+            }
+            throw e;
+        }
+    }
 
+    /**
+     * Return the current state of the connection to a device.
+     *
+     * @param address The address of the remote device
+     */
+    public synchronized int getState(String address) {
+        Connection connection = mConnections.get(address);
+        return connection == null ? STATE_NONE : connection.mmState;
+    }
 
-
-//        Listen isn 't working with Arduino. Ignore since assuming the phone will initiate the connection.
+    /**
+     * Cancel the threads of a connection and forget it, unless it has
+     * already been replaced by a newer connection to the same device.
+     */
+    private synchronized void close(Connection connection) {
+        connection.cancel();
+        connection.failQueuedWrites();
+        if (mConnections.get(connection.mmAddress) == connection) {
+            mConnections.remove(connection.mmAddress);
+            setState(connection, STATE_NONE);
+        }
     }
 
  /*   public synchronized void listen() {
@@ -159,13 +329,15 @@ public class BluetoothSerialService {
 
     /**
      * Start a device discovery process. Results are broadcasted to the
-     * Handler registered to this class. This will not cancel any current
+     * Listener registered to this class. This will not cancel any current
      * discovery process, but you should do it anyways.
      *
+     * @param filter Devices that don't match are not passed to the Listener, null to pass every device.
      * @throws Exception If there is an error starting the discovery process.
      * @see BluetoothDevice
      */
-    public void startDiscovery() throws Exception {
+    public void startDiscovery(DiscoveryFilter filter) throws Exception {
+        mDiscoveryFilter = filter;
         try {
             if (!mAdapter.startDiscovery()) {
                 throw new Exception("Error starting discovery.");
@@ -196,23 +368,6 @@ public class BluetoothSerialService {
     }
 
 
-    /**
-     * Check if the device at given address is bonded with this device.
-     *
-     * @param address The device we want to check against.
-     * @return Flag indicating whether the devices are bonded.
-     * @throws Exception If there is a problem deducing the bond state. A wrong address might also cause this. :)
-     * @see BluetoothDevice
-     */
-    public boolean isBonded(String address) throws Exception {
-        try {
-            BluetoothDevice device = mAdapter.getRemoteDevice(address);
-            return device.getBondState() == BluetoothDevice.BOND_BONDED;
-        } catch (Exception e) {
-            throw e;
-        }
-    }
-
     /**
      * Attempt to bond with the device at given address.
      *
@@ -244,38 +399,64 @@ public class BluetoothSerialService {
      *
      * @return True if a connection attempt is in progress.
      */
-    public boolean isConnecting() {
-        return mState == STATE_CONNECTED;
+    public synchronized boolean isConnecting() {
+        for (Connection connection : mConnections.values()) {
+            if (connection.mmState == STATE_CONNECTING) {
+                return true;
+            }
+        }
+        return false;
     }
 
 
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
+     * Connections to other devices are left alone.
      *
      * @param device The BluetoothDevice to connect
      * @param secure Socket Security type - Secure (true) , Insecure (false)
+     * @param policy How to reconnect if the connection is lost, null to not reconnect
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
-        if (D) Log.d(TAG, "connect to: " + device);
+    public void connect(BluetoothDevice device, boolean secure, ReconnectPolicy policy) {
+        connect(new RfcommTransport.Factory(device, secure, mConnectCache), policy);
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
+    /**
+     * Start the ConnectThread to initiate a connection over any transport.
+     * Connections to other devices are left alone.
+     *
+     * @param factory Creates the transport for each connection attempt
+     * @param policy  How to reconnect if the connection is lost, null to not reconnect
+     */
+    public void connect(SerialTransport.Factory factory, ReconnectPolicy policy) {
+        connect(factory, policy, null);
+    }
+
+    /**
+     * Start the ConnectThread to initiate a connection over any transport,
+     * watching the link with a heartbeat and read idle timeout.
+     *
+     * @param liveness How to tell the link is dead, null to wait for a read to fail
+     */
+    public void connect(SerialTransport.Factory factory, ReconnectPolicy policy, LivenessPolicy liveness) {
+        if (D) Log.d(TAG, "connect to: " + factory.getAddress());
+
+        synchronized (this) {
+            // Cancel any thread connecting or connected to this device
+            Connection connection = mConnections.get(factory.getAddress());
+            if (connection != null) {
+                connection.cancel();
+                connection.failQueuedWrites();
             }
-        }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+            // Start the thread to connect with the given device
+            connection = new Connection(factory, policy, liveness);
+            mConnections.put(connection.mmAddress, connection);
+            connection.mmConnectThread = new ConnectThread(connection, 0);
+            connection.mmConnectThread.start();
+            setState(connection, STATE_CONNECTING);
         }
-
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+        dispatchEvents();
     }
 
     /**
@@ -284,130 +465,484 @@ public class BluetoothSerialService {
      * @param socket The BluetoothSocket on which the connection was made
      * @param device The BluetoothDevice that has been connected
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device, final String socketType) {
-        if (D) Log.d(TAG, "connected, Socket Type:" + socketType);
+    public void connected(BluetoothSocket socket, BluetoothDevice device, final String socketType) {
+        synchronized (this) {
+            Connection connection = mConnections.get(device.getAddress());
+            if (connection == null) {
+                connection = new Connection(new RfcommTransport.Factory(device, true, mConnectCache), null, null);
+                mConnections.put(connection.mmAddress, connection);
+            }
+            connected(connection, new RfcommTransport(socket, socketType));
+        }
+        dispatchEvents();
+    }
+
+    private void connected(Connection connection, SerialTransport transport) {
+        if (D) Log.d(TAG, "connected: " + transport.getName());
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        synchronized (this) {
+            if (mConnections.get(connection.mmAddress) != connection) {
+                // stopped or replaced while connecting
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close unwanted transport", e);
+                }
+                return;
+            }
+
+            // Cancel the thread that completed the connection
+            if (connection.mmConnectThread != null) {
+                connection.mmConnectThread.cancel();
+                connection.mmConnectThread = null;
+            }
+
+            // Cancel any thread currently running a connection
+            if (connection.mmConnectedThread != null) {
+                connection.mmConnectedThread.cancel();
+                connection.mmConnectedThread = null;
+            }
+
+            // Start the thread to manage the connection and perform transmissions
+            connection.mmConnectedThread = new ConnectedThread(connection, transport);
+            connection.mmConnectedThread.start();
+
+            if (D) Log.i(TAG, "connected to " + transport.getName());
+
+            connection.mmReconnectAttempts = 0;
+            setState(connection, STATE_CONNECTED);
         }
+        dispatchEvents();
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    /**
+     * Stop all threads
+     */
+    public void stop() {
+        if (D) Log.d(TAG, "stop");
+
+        synchronized (this) {
+            for (Connection connection : new ArrayList<Connection>(mConnections.values())) {
+                close(connection);
+            }
+
+            if (mSecureAcceptThread != null) {
+                mSecureAcceptThread.cancel();
+                mSecureAcceptThread = null;
+            }
+
+            if (mInsecureAcceptThread != null) {
+                mInsecureAcceptThread.cancel();
+                mInsecureAcceptThread = null;
+            }
         }
+        dispatchEvents();
+    }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+    /**
+     * Stop the threads of the connection to one device
+     *
+     * @param address The address of the remote device
+     */
+    public void stop(String address) {
+        if (D) Log.d(TAG, "stop " + address);
+
+        synchronized (this) {
+            Connection connection = mConnections.get(address);
+            if (connection != null) {
+                close(connection);
+            }
         }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        dispatchEvents();
+    }
+
+    /**
+     * Queue data to be written by the WriterThread of a connection.
+     * This never blocks. When the bytes have been written the listener's
+     * onWrite is called with the token, or onWriteFailed if the write fails.
+     *
+     * @param address The address of the remote device
+     * @param out     The bytes to write
+     * @param token   Passed back to the listener, e.g. the callback to notify
+     * @return False if not connected or the write queue is full
+     * @see WriterThread
+     */
+    public boolean write(String address, byte[] out, Object token) {
+        return write(address, out, token, LANE_BULK);
+    }
+
+    /**
+     * Queue data on one of the write lanes of a connection. Control writes
+     * are sent before any queued bulk writes, and between the chunks of a
+     * large bulk write that is already being sent.
+     *
+     * @param lane LANE_CONTROL or LANE_BULK
+     * @return False if not connected or the lane's queue is full
+     */
+    public boolean write(String address, byte[] out, Object token, int lane) {
+        Connection connection;
+        synchronized (this) {
+            connection = mConnections.get(address);
+            if (connection == null) return false;
+            // writes made while reconnecting are sent once the connection is back
+            if (connection.mmState != STATE_CONNECTED && connection.mmState != STATE_RECONNECTING) return false;
         }
+        return connection.enqueue(out, token, lane);
+    }
+
+    /**
+     * Number of writes queued on a connection that have not been sent yet.
+     */
+    public synchronized int getWriteQueueDepth(String address) {
+        Connection connection = mConnections.get(address);
+        return connection == null ? 0 : connection.queued();
+    }
+
+    /**
+     * Number of writes queued on one lane of a connection.
+     */
+    public synchronized int getWriteQueueDepth(String address, int lane) {
+        Connection connection = mConnections.get(address);
+        return connection == null ? 0 : connection.queue(lane).size();
+    }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
+    /**
+     * Set the maximum number of queued writes in each lane for connections made after this call.
+     */
+    public synchronized void setWriteQueueSize(int size) {
+        mWriteQueueSize = size;
+    }
 
-        // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(BluetoothSerial.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(BluetoothSerial.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+    /**
+     * Set the size of the buffer each connection reads into, for connections made after this call.
+     */
+    public void setReadSize(int size) {
+        mReadBuffers.setBufferSize(size);
+    }
 
-        setState(STATE_CONNECTED);
+    /**
+     * The number of read buffers allocated because every pooled buffer was in use.
+     */
+    public long getReadBufferExhaustedCount() {
+        return mReadBuffers.getExhaustedCount();
     }
 
     /**
-     * Stop all threads
+     * The strategy and channel that connected to each device, shared by every RFCOMM connect.
      */
-    public synchronized void stop() {
-        if (D) Log.d(TAG, "stop");
+    public RfcommTransport.Cache getConnectCache() {
+        return mConnectCache;
+    }
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    /**
+     * Merge writes queued within window milliseconds of each other into one
+     * socket write of at most maxSize bytes. A window of 0 turns this off.
+     */
+    public void setWriteCoalescing(int window, int maxSize) {
+        mCoalesceSize = maxSize;
+        mCoalesceWindow = window;
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    /**
+     * Send bulk writes in socket writes of at most size bytes, so a control
+     * write waits for one chunk at most.
+     */
+    public void setWriteChunkSize(int size) {
+        mChunkSize = size;
+    }
+
+    /**
+     * Send any writes being held for coalescing right away.
+     */
+    public synchronized void flush(String address) {
+        Connection connection = mConnections.get(address);
+        if (connection != null && connection.mmConnectedThread != null) {
+            connection.mmConnectedThread.mmWriter.flush();
         }
+    }
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+    /**
+     * Stop or start reading from a device. While reading is paused the
+     * device is held back by the transport's flow control once its buffers
+     * fill. The pause outlasts reconnects, but not a new connect().
+     */
+    public synchronized void setReadPaused(String address, boolean paused) {
+        Connection connection = mConnections.get(address);
+        if (connection != null) {
+            connection.setReadPaused(paused);
         }
+    }
 
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+    /**
+     * Indicate that the connection attempt failed and notify the listener.
+     */
+    private void connectionFailed(Connection connection) {
+        synchronized (this) {
+            if (connection.mmState != STATE_RECONNECTING || !reconnect(connection)) {
+                // Nobody is waiting for a connection that was stopped or replaced
+                if (mConnections.get(connection.mmAddress) == connection) {
+                    // Send a failure message back to the listener
+                    postConnectionError(connection, "Unable to connect to device");
+                }
+
+                close(connection);
+            }
         }
-        setState(STATE_NONE);
+        dispatchEvents();
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     *
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * Indicate that the connection was lost and notify the listener.
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
+    private void connectionLost(Connection connection) {
         synchronized (this) {
-            if (mState == STATE_LISTEN && _mmOutStream != null) {
-                try {
-                    _mmOutStream.write(out);
-                    mHandler.obtainMessage(BluetoothSerial.MESSAGE_WRITE, -1, -1, out).sendToTarget();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            if (!reconnect(connection)) {
+                if (mConnections.get(connection.mmAddress) == connection) {
+                    // Send a failure message back to the listener
+                    postConnectionError(connection, "Device connection was lost");
                 }
+
+                close(connection);
             }
-            if (mState == STATE_CONNECTED) {
-                r = mConnectedThread;
-                r.write(out);
+        }
+        dispatchEvents();
+    }
+
+    private void postConnectionError(Connection connection, final String message) {
+        final String address = connection.mmAddress;
+        post(new Runnable() {
+            public void run() {
+                mListener.onConnectionError(address, message);
             }
+        });
+    }
 
+    /**
+     * Start another connection attempt after the backoff delay, if the
+     * connection has a reconnect policy with attempts left. The write queue
+     * is kept so queued writes are sent once the connection is back.
+     *
+     * @return True if a reconnect was started
+     */
+    private synchronized boolean reconnect(Connection connection) {
+        ReconnectPolicy policy = connection.mmPolicy;
+        if (policy == null || mConnections.get(connection.mmAddress) != connection
+                || connection.mmReconnectAttempts >= policy.maxAttempts) {
+            return false;
         }
-        // Perform the write unsynchronized
 
+        connection.cancel();
+        connection.mmReconnectAttempts++;
+        final long delay = policy.getDelay(connection.mmReconnectAttempts, mRandom);
+        if (D) Log.d(TAG, "reconnect " + connection.mmAddress + " attempt " + connection.mmReconnectAttempts + " in " + delay + "ms");
+
+        final String address = connection.mmAddress;
+        final int attempt = connection.mmReconnectAttempts;
+        post(new Runnable() {
+            public void run() {
+                mListener.onReconnecting(address, attempt, delay);
+            }
+        });
+        connection.mmConnectThread = new ConnectThread(connection, delay);
+        connection.mmConnectThread.start();
+        setState(connection, STATE_RECONNECTING);
+        return true;
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * How to reconnect when a connection is lost. The delay before attempt n
+     * is baseDelay * 2^(n-1) milliseconds, capped at maxDelay, then reduced
+     * at random by up to jitter (a fraction between 0 and 1) so that several
+     * clients don't retry in lockstep.
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(BluetoothSerial.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(BluetoothSerial.TOAST, "Unable to connect to device");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+    public static class ReconnectPolicy {
+        public final int maxAttempts;
+        public final long baseDelay;
+        public final long maxDelay;
+        public final double jitter;
+
+        public ReconnectPolicy(int maxAttempts, long baseDelay, long maxDelay, double jitter) {
+            this.maxAttempts = maxAttempts;
+            this.baseDelay = baseDelay;
+            this.maxDelay = maxDelay;
+            this.jitter = Math.max(0, Math.min(1, jitter));
+        }
 
-        // Start the service over to restart listening mode
-        BluetoothSerialService.this.start();
+        long getDelay(int attempt, Random random) {
+            long delay = maxDelay;
+            if (attempt <= 31 && baseDelay << (attempt - 1) < maxDelay) {
+                delay = baseDelay << (attempt - 1);
+            }
+            return delay - (long) (delay * jitter * random.nextDouble());
+        }
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * How a connection tells that its link is dead. A link to a device that
+     * was switched off or went out of range can take a long time to fail a
+     * read, so when nothing was read for idleTimeout milliseconds the link is
+     * closed and handled like a failed read. When the link has been quiet for
+     * interval milliseconds the heartbeat is written, so a device that
+     * answers it keeps an idle link alive; if reply is set, receiving it
+     * measures the heartbeat round trip. The reply is passed on like any
+     * other data unless consumeReply is set.
      */
-    private void connectionLost() {
-        // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(BluetoothSerial.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(BluetoothSerial.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+    public static class LivenessPolicy {
+        public final long interval;     // milliseconds, 0 sends no heartbeat
+        public final byte[] heartbeat;
+        public final byte[] reply;      // null if the reply is not matched
+        public final boolean consumeReply;  // take the reply out of the received data
+        public final long idleTimeout;  // milliseconds, 0 never times out
+        private final int[] replyFallback;
+
+        public LivenessPolicy(long interval, byte[] heartbeat, byte[] reply, boolean consumeReply, long idleTimeout) {
+            this.interval = heartbeat == null ? 0 : interval;
+            this.heartbeat = heartbeat;
+            this.reply = reply != null && reply.length > 0 ? reply : null;
+            this.consumeReply = consumeReply && this.reply != null;
+            this.idleTimeout = idleTimeout;
+            this.replyFallback = this.reply == null ? null : fallback(this.reply);
+        }
 
-        // Start the service over to restart listening mode
-        BluetoothSerialService.this.start();
+        /**
+         * Advance a search for the reply by one received byte.
+         *
+         * @param matched The number of reply bytes matched so far
+         * @return The number matched after b, reply.length when the reply is complete
+         */
+        int match(int matched, byte b) {
+            if (matched == reply.length) {
+                matched = replyFallback[matched - 1];
+            }
+            while (matched > 0 && reply[matched] != b) {
+                matched = replyFallback[matched - 1];
+            }
+            return reply[matched] == b ? matched + 1 : 0;
+        }
+
+        // the KMP failure function, so a reply split across reads or preceded by part of itself is found
+        private static int[] fallback(byte[] pattern) {
+            int[] fallback = new int[pattern.length];
+            for (int i = 1, k = 0; i < pattern.length; i++) {
+                while (k > 0 && pattern[i] != pattern[k]) {
+                    k = fallback[k - 1];
+                }
+                if (pattern[i] == pattern[k]) {
+                    k++;
+                }
+                fallback[i] = k;
+            }
+            return fallback;
+        }
+    }
+
+    /**
+     * The state and threads of the connection to one remote device.
+     */
+    private class Connection {
+        final String mmAddress;
+        final SerialTransport.Factory mmFactory;
+        final ReconnectPolicy mmPolicy;
+        final LivenessPolicy mmLiveness;
+        final BlockingDeque<WriteRequest> mmControlQueue;
+        final BlockingDeque<WriteRequest> mmWriteQueue;  // the bulk lane
+        final Semaphore mmWritesQueued = new Semaphore(0);  // a permit for each queued write, and for each flush
+        int mmState = STATE_NONE;
+        int mmReconnectAttempts;
+        ConnectThread mmConnectThread;
+        ConnectedThread mmConnectedThread;
+        private volatile boolean mmClosed;
+        private boolean mmReadPaused;  // guarded by this Connection
+
+        Connection(SerialTransport.Factory factory, ReconnectPolicy policy, LivenessPolicy liveness) {
+            mmAddress = factory.getAddress();
+            mmFactory = factory;
+            mmPolicy = policy;
+            mmLiveness = liveness;
+            mmControlQueue = new LinkedBlockingDeque<WriteRequest>(mWriteQueueSize);
+            mmWriteQueue = new LinkedBlockingDeque<WriteRequest>(mWriteQueueSize);
+        }
+
+        BlockingDeque<WriteRequest> queue(int lane) {
+            return lane == LANE_CONTROL ? mmControlQueue : mmWriteQueue;
+        }
+
+        int queued() {
+            return mmControlQueue.size() + mmWriteQueue.size();
+        }
+
+        boolean enqueue(byte[] data, Object token, int lane) {
+            WriteRequest request = new WriteRequest(data, token, lane);
+            BlockingDeque<WriteRequest> queue = queue(lane);
+            if (mmClosed || !queue.offer(request)) {
+                return false;
+            }
+            // Lost a race with failQueuedWrites(), the request will not be sent
+            if (mmClosed && queue.remove(request)) {
+                return false;
+            }
+            mmWritesQueued.release();
+            return true;
+        }
+
+        /**
+         * Put back a write that was taken from its queue but not sent.
+         *
+         * @return False if its queue is full or the connection is closed
+         */
+        boolean requeue(WriteRequest request) {
+            BlockingDeque<WriteRequest> queue = queue(request.lane);
+            if (mmClosed || !queue.offerFirst(request)) {
+                return false;
+            }
+            // Lost a race with failQueuedWrites(), the request will not be sent
+            if (mmClosed && queue.remove(request)) {
+                return false;
+            }
+            mmWritesQueued.release();
+            return true;
+        }
+
+        /**
+         * The next write to send, control writes first, or null if none are queued.
+         */
+        WriteRequest poll() {
+            WriteRequest request = mmControlQueue.poll();
+            return request != null ? request : mmWriteQueue.poll();
+        }
+
+        /**
+         * Fail every write that has not been sent. Called with the service
+         * monitor held when the connection is closed for good.
+         */
+        void failQueuedWrites() {
+            mmClosed = true;
+            WriteRequest request;
+            while ((request = poll()) != null) {
+                final Object token = request.token;
+                post(new Runnable() {
+                    public void run() {
+                        mListener.onWriteFailed(mmAddress, token);
+                    }
+                });
+            }
+        }
+
+        synchronized void setReadPaused(boolean paused) {
+            mmReadPaused = paused;
+            notifyAll();
+        }
+
+        void cancel() {
+            if (mmConnectThread != null) {
+                mmConnectThread.cancel();
+                mmConnectThread = null;
+            }
+            if (mmConnectedThread != null) {
+                mmConnectedThread.cancel();
+                mmConnectedThread = null;
+            }
+        }
     }
 
     /**
@@ -427,9 +962,9 @@ public class BluetoothSerialService {
             // Create a new listening server socket
             try {
                 if (secure) {
-                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, UUID_SPP);
+                    tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, RfcommTransport.UUID_SPP);
                 } else {
-                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, UUID_SPP);
+                    tmp = mAdapter.listenUsingInsecureRfcommWithServiceRecord(NAME_INSECURE, RfcommTransport.UUID_SPP);
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
@@ -443,8 +978,8 @@ public class BluetoothSerialService {
 
             BluetoothSocket socket;
 
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Listen to the server socket until cancelled
+            while (true) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
@@ -457,26 +992,20 @@ public class BluetoothSerialService {
                 // If a connection was accepted
                 if (socket != null) {
                     synchronized (BluetoothSerialService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                                connected(socket, socket.getRemoteDevice(), mSocketType);
-                                break;
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
+                        BluetoothDevice device = socket.getRemoteDevice();
+                        if (BluetoothSerialService.this.getState(device.getAddress()) != STATE_CONNECTED) {
+                            // Situation normal. Start the connected thread.
+                            connected(socket, device, mSocketType);
+                        } else {
+                            // Already connected to this device. Terminate new socket.
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                Log.e(TAG, "Could not close unwanted socket", e);
+                            }
                         }
                     }
+                    dispatchEvents();
                 }
             }
             if (D) Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
@@ -500,63 +1029,81 @@ public class BluetoothSerialService {
      * succeeds or fails.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
-        private String mSocketType;
+        private final Connection mmConnection;
+        private final long mmDelay;
+        private volatile SerialTransport mmTransport;
+        private volatile boolean mmCanceled;
+
+        public ConnectThread(Connection connection, long delay) {
+            mmConnection = connection;
+            mmDelay = delay;
+        }
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = secure ? "Secure" : "Insecure";
+        public void run() {
+            Log.i(TAG, "BEGIN mConnectThread " + mmConnection.mmAddress);
+            setName("ConnectThread");
 
-            // Get a BluetoothSocket for a connection with the given BluetoothDevice
-            try {
-                tmp = device.createInsecureRfcommSocketToServiceRecord(UUID_SPP);
+            // Wait before reconnecting, cancel() interrupts the wait
+            if (mmDelay > 0) {
+                try {
+                    Thread.sleep(mmDelay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
 
+            SerialTransport transport;
+            try {
+                transport = mmConnection.mmFactory.create();
             } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
+                Log.e(TAG, "create() failed", e);
+                connectionFailed(mmConnection);
+                return;
             }
-            mmSocket = tmp;
-        }
-
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
-            setName("ConnectThread" + mSocketType);
 
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            // cancel() closes the transport to abort the connect
+            mmTransport = transport;
+            if (mmCanceled) {
+                close(transport);
+                return;
+            }
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the device
             try {
                 // This is a blocking call and will only return on a successful connection or an exception
-                mmSocket.connect();
+                transport.connect();
             } catch (IOException e) {
                 Log.e(TAG, e.toString());
-                e.printStackTrace();
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType + " socket during connection failure", e2);
-                }
-                connectionFailed();
+                close(transport);
+                connectionFailed(mmConnection);
                 return;
             }
 
             // Reset the ConnectThread because we're done
             synchronized (BluetoothSerialService.this) {
-                mConnectThread = null;
+                if (mmConnection.mmConnectThread == this) {
+                    mmConnection.mmConnectThread = null;
+                }
             }
 
             // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+            connected(mmConnection, transport);
         }
 
         public void cancel() {
+            mmCanceled = true;
+            interrupt();
+            SerialTransport transport = mmTransport;
+            if (transport != null) {
+                close(transport);
+            }
+        }
+
+        private void close(SerialTransport transport) {
             try {
-                mmSocket.close();
+                transport.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
+                Log.e(TAG, "close() of " + transport.getName() + " during connect failed", e);
             }
         }
     }
@@ -566,77 +1113,505 @@ public class BluetoothSerialService {
      * It handles all incoming and outgoing transmissions.
      */
     private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+        private final Connection mmConnection;
+        private final SerialTransport mmTransport;
         private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
+        private final WriterThread mmWriter;
+        private final WatchdogThread mmWatchdog;
+        private volatile boolean mmCanceled;
+        private volatile long mmLastRead = System.nanoTime();
+        private volatile long mmHeartbeatSent;  // 0 when no heartbeat is waiting for its reply
+        // held while received data is passed on, so the watchdog can let go of held back bytes in order
+        private final Object mmReadLock = new Object();
+        private int mmReplyMatched;  // reply bytes matched so far, held back if the reply is consumed
+        private byte[] mmStripped = new byte[0];  // the received data without the reply
+
+        public ConnectedThread(Connection connection, SerialTransport transport) {
+            Log.d(TAG, "create ConnectedThread: " + transport.getName());
+            mmConnection = connection;
+            mmTransport = transport;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the transport input and output streams
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = transport.getInputStream();
+                tmpOut = transport.getOutputStream();
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
             mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmWriter = new WriterThread(connection, tmpOut);
+            mmWatchdog = connection.mmLiveness == null ? null : new WatchdogThread(this);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
+            byte[] buffer = mReadBuffers.acquire();
             int bytes;
 
+            mmWriter.start();
+            if (mmWatchdog != null) {
+                mmWatchdog.start();
+            }
+
             // Keep listening to the InputStream while connected
-            while (true) {
-                try {
+            try {
+                while (true) {
+                    awaitResume();
+
                     // Read from the InputStream
                     bytes = mmInStream.read(buffer);
-                    String data = new String(buffer, 0, bytes);
-
-                    // Send the new data String to the UI Activity
-                    mHandler.obtainMessage(BluetoothSerial.MESSAGE_READ, data).sendToTarget();
+                    if (bytes < 0) {
+                        throw new IOException("end of stream");
+                    }
+                    mmLastRead = System.nanoTime();
+                    synchronized (mmReadLock) {
+                        byte[] data = buffer;
+                        if (mmHeartbeatSent != 0 || mmReplyMatched > 0) {
+                            if (mmConnection.mmLiveness.consumeReply) {
+                                bytes = stripReply(buffer, bytes);
+                                data = mmStripped;
+                            } else {
+                                matchReply(buffer, bytes);
+                            }
+                        }
 
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothSerialService.this.start();
-                    break;
+                        // Send the received bytes to the listener on this thread, decoding is left to the reader.
+                        // The buffer is reused for the next read, so the listener must not keep it.
+                        if (bytes > 0) {
+                            mListener.onRead(mmConnection.mmAddress, data, bytes);
+                        }
+                    }
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "disconnected", e);
+                releaseReply();
+                connectionLost(mmConnection);
+            } finally {
+                mReadBuffers.release(buffer);
             }
         }
 
         /**
-         * Write to the connected OutStream.
+         * Take the heartbeat reply out of the received data, so that neither
+         * pending transactions nor the app see it. Bytes that may be the start
+         * of the reply are held back until the next read tells; they are
+         * always the first mmReplyMatched bytes of the reply, so they need no
+         * buffer of their own. Once no heartbeat is waiting they are let go,
+         * by the next read or by releaseReply().
          *
-         * @param buffer The bytes to write
+         * @return The number of bytes to pass on, at the start of mmStripped
          */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
+        private int stripReply(byte[] buffer, int length) {
+            LivenessPolicy liveness = mmConnection.mmLiveness;
+            byte[] reply = liveness.reply;
+            if (mmStripped.length < length + reply.length) {
+                mmStripped = new byte[length + reply.length];
+            }
+            long sent = mmHeartbeatSent;
+            int matched = mmReplyMatched;
+            System.arraycopy(reply, 0, mmStripped, 0, matched);
+            int count = matched;
+            if (sent == 0) {
+                matched = 0;
+            }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(BluetoothSerial.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
+            for (int i = 0; i < length; i++) {
+                mmStripped[count++] = buffer[i];
+                if (sent == 0) {
+                    continue;
+                }
+                matched = liveness.match(matched, buffer[i]);
+                if (matched == reply.length) {
+                    count -= reply.length;
+                    matched = 0;
+                    mmHeartbeatSent = 0;
+                    mListener.onHeartbeat(mmConnection.mmAddress, mmLastRead - sent);
+                    sent = 0;
+                }
+            }
 
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+            mmReplyMatched = matched;
+            return count - matched;
+        }
+
+        /**
+         * Look for the heartbeat reply in the received data, which is passed
+         * on whole.
+         */
+        private void matchReply(byte[] buffer, int length) {
+            LivenessPolicy liveness = mmConnection.mmLiveness;
+            long sent = mmHeartbeatSent;
+            int matched = 0;
+            if (sent != 0) {
+                matched = mmReplyMatched;
+                for (int i = 0; i < length; i++) {
+                    matched = liveness.match(matched, buffer[i]);
+                    if (matched == liveness.reply.length) {
+                        matched = 0;
+                        mmHeartbeatSent = 0;
+                        mListener.onHeartbeat(mmConnection.mmAddress, mmLastRead - sent);
+                        break;
+                    }
+                }
+            }
+            mmReplyMatched = matched;
+        }
+
+        /**
+         * Pass on the bytes held back as the possible start of a consumed
+         * reply, when no more of it is coming: the heartbeat was not answered
+         * in time or the link is closing.
+         */
+        void releaseReply() {
+            synchronized (mmReadLock) {
+                LivenessPolicy liveness = mmConnection.mmLiveness;
+                int matched = mmReplyMatched;
+                mmReplyMatched = 0;
+                if (matched > 0 && liveness.consumeReply) {
+                    // the held back bytes are always the start of the reply
+                    mListener.onRead(mmConnection.mmAddress, liveness.reply, matched);
+                }
+            }
+        }
+
+        // Wait while reading is paused, an exception ends the connection as a failed read would
+        private void awaitResume() throws IOException {
+            synchronized (mmConnection) {
+                while (mmConnection.mmReadPaused && !mmCanceled) {
+                    try {
+                        mmConnection.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            if (mmCanceled) {
+                throw new IOException("canceled");
             }
         }
 
         public void cancel() {
+            mmCanceled = true;
+            synchronized (mmConnection) {
+                mmConnection.notifyAll();
+            }
+            mmWriter.cancel();
+            if (mmWatchdog != null) {
+                mmWatchdog.cancel();
+            }
             try {
-                mmSocket.close();
+                mmTransport.close();
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                Log.e(TAG, "close() of " + mmTransport.getName() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * This thread watches the link of a ConnectedThread. It writes the
+     * heartbeat once the link has been quiet for the heartbeat interval, and
+     * closes the transport once nothing was read for the idle timeout, so the
+     * ConnectedThread's read fails and the connection is lost or reconnected
+     * as usual. Time paused by flow control does not count as idle.
+     */
+    private class WatchdogThread extends Thread {
+        private final ConnectedThread mmConnected;
+        private final LivenessPolicy mmLiveness;
+        private volatile boolean mmCanceled;
+
+        WatchdogThread(ConnectedThread connected) {
+            mmConnected = connected;
+            mmLiveness = connected.mmConnection.mmLiveness;
+        }
+
+        public void run() {
+            setName("WatchdogThread");
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(mmLiveness.interval);
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(mmLiveness.idleTimeout);
+            long lastSent = System.nanoTime();
+
+            while (!mmCanceled) {
+                long now = System.nanoTime();
+                Connection connection = mmConnected.mmConnection;
+                synchronized (connection) {
+                    if (connection.mmReadPaused) {
+                        // the app is not reading, the device has no reason to think we are gone
+                        mmConnected.mmLastRead = now;
+                    }
+                }
+
+                long idle = now - mmConnected.mmLastRead;
+                if (timeoutNanos > 0 && idle >= timeoutNanos) {
+                    long idleMillis = TimeUnit.NANOSECONDS.toMillis(idle);
+                    Log.w(TAG, "link to " + connection.mmAddress + " idle for " + idleMillis + "ms");
+                    mmConnected.releaseReply();
+                    mListener.onLinkTimeout(connection.mmAddress, idleMillis);
+                    try {
+                        mmConnected.mmTransport.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "close() of " + mmConnected.mmTransport.getName() + " failed", e);
+                    }
+                    return;
+                }
+
+                long wait = timeoutNanos > 0 ? timeoutNanos - idle : Long.MAX_VALUE;
+                if (intervalNanos > 0) {
+                    long sent = mmConnected.mmHeartbeatSent;
+                    if (sent != 0 && now - sent >= intervalNanos) {
+                        // no reply within an interval, it is lost, so the next heartbeat can be timed
+                        if (D) Log.d(TAG, "heartbeat reply from " + connection.mmAddress + " lost");
+                        mmConnected.mmHeartbeatSent = 0;
+                        mmConnected.releaseReply();
+                    }
+
+                    long quiet = now - Math.max(mmConnected.mmLastRead, lastSent);
+                    if (quiet >= intervalNanos) {
+                        // timed before it is queued, so a fast reply is not missed
+                        boolean timed = mmLiveness.reply != null && mmConnected.mmHeartbeatSent == 0;
+                        if (timed) {
+                            mmConnected.mmHeartbeatSent = now;
+                        }
+                        // a full queue already has writes on their way, which will get an answer too
+                        if (!connection.enqueue(mmLiveness.heartbeat, null, LANE_CONTROL) && timed) {
+                            mmConnected.mmHeartbeatSent = 0;
+                        }
+                        lastSent = now;
+                        quiet = 0;
+                    }
+                    wait = Math.min(wait, intervalNanos - quiet);
+                }
+
+                try {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(wait, TimeUnit.SECONDS.toNanos(1)));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void cancel() {
+            mmCanceled = true;
+            interrupt();
+        }
+    }
+
+    /**
+     * A write waiting in the WriterThread queue.
+     */
+    private static class WriteRequest {
+        final byte[] data;
+        final Object token;
+        final int lane;
+        final long queuedNanos = System.nanoTime();
+
+        WriteRequest(byte[] data, Object token, int lane) {
+            this.data = data;
+            this.token = token;
+            this.lane = lane;
+        }
+    }
+
+    /**
+     * This thread drains the bounded write queues of a connection to its
+     * OutputStream, so callers never block on a slow link and the service
+     * monitor is not held while writing. Control writes are sent first and
+     * one at a time. Bulk writes are sent in chunks, with any control writes
+     * that arrive sent in between, and when coalescing is enabled small bulk
+     * writes queued within the coalesce window are merged into a single
+     * socket write. The queues belong to the connection, so writes that were
+     * not sent before the link dropped are sent by the next WriterThread
+     * after a reconnect.
+     */
+    private class WriterThread extends Thread {
+        private final String mmAddress;
+        private final OutputStream mmOutStream;
+        private final Connection mmConnection;
+        private final List<WriteRequest> mmBatch = new ArrayList<WriteRequest>();  // the bulk writes being sent
+        private final List<Object> mmTokens = new ArrayList<Object>();
+        private final List<Object> mmControlTokens = new ArrayList<Object>(1);
+        private byte[] mmCoalesceBuffer = new byte[0];
+        private WriteRequest mmCarry;
+        private volatile boolean mmFlushRequested;
+        private volatile boolean mmCanceled;
+
+        public WriterThread(Connection connection, OutputStream out) {
+            mmAddress = connection.mmAddress;
+            mmOutStream = out;
+            mmConnection = connection;
+        }
+
+        /**
+         * End the current coalesce window and write what has been collected.
+         */
+        public void flush() {
+            mmFlushRequested = true;
+            // a permit without a write wakes the thread if it is waiting for more writes
+            mmConnection.mmWritesQueued.release();
+        }
+
+        public void run() {
+            Log.i(TAG, "BEGIN mWriterThread");
+            setName("WriterThread");
+
+            while (!mmCanceled) {
+                WriteRequest request;
+                try {
+                    if (mmCarry != null) {
+                        request = mmCarry;
+                        mmCarry = null;
+                    } else {
+                        mmConnection.mmWritesQueued.acquire();
+                        request = mmConnection.poll();
+                    }
+                    if (request == null) {
+                        // flush with nothing pending
+                        mmFlushRequested = false;
+                        continue;
+                    }
+
+                    if (request.lane == LANE_CONTROL) {
+                        sendControl(request);
+                        continue;
+                    }
+
+                    mmBatch.clear();
+                    mmBatch.add(request);
+                    mmTokens.clear();
+                    mmTokens.add(request.token);
+
+                    long waitNanos = System.nanoTime() - request.queuedNanos;
+                    int window = mCoalesceWindow;
+                    int maxSize = mCoalesceSize;
+                    int length = request.data.length;
+                    if (window > 0 && length < maxSize) {
+                        length = coalesce(request, window, maxSize);
+                        mmOutStream.write(mmCoalesceBuffer, 0, length);
+                    } else {
+                        writeChunked(request.data);
+                    }
+                    mmOutStream.flush();
+                    mmFlushRequested = false;
+
+                    // Tell the listener which writes were sent
+                    mListener.onWrite(mmAddress, LANE_BULK, mmTokens, mmConnection.queued(), length, waitNanos);
+                    mmBatch.clear();
+                    mmTokens.clear();
+
+                } catch (InterruptedException e) {
+                    // canceled while merging writes, nothing was written yet
+                    break;
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception during write", e);
+                    failTokens();
+                    break;
+                }
+            }
+
+            // Put back the writes that were taken but not sent, the queue is
+            // either sent after a reconnect or failed when the connection is closed
+            if (mmCarry != null) {
+                requeue(mmCarry);
+                mmCarry = null;
+            }
+            for (int i = mmBatch.size() - 1; i >= 0; i--) {
+                requeue(mmBatch.get(i));
+            }
+            mmBatch.clear();
+            mmTokens.clear();
+        }
+
+        private void requeue(WriteRequest request) {
+            if (!mmConnection.requeue(request)) {
+                mListener.onWriteFailed(mmAddress, request.token);
+            }
+        }
+
+        // Write data in chunks, sending any control writes that are waiting in between
+        private void writeChunked(byte[] data) throws IOException {
+            int chunkSize = mChunkSize;
+            int offset = 0;
+            while (offset < data.length) {
+                int count = Math.min(chunkSize, data.length - offset);
+                mmOutStream.write(data, offset, count);
+                offset += count;
+                while (offset < data.length && !mmConnection.mmControlQueue.isEmpty()) {
+                    WriteRequest control = mmConnection.mmControlQueue.poll();
+                    if (control != null) {
+                        // take its permit too, a permit left behind would end the next coalesce window early;
+                        // every queued write has one, released right after it was queued
+                        mmConnection.mmWritesQueued.acquireUninterruptibly();
+                        sendControl(control);
+                    }
+                }
             }
         }
+
+        private void sendControl(WriteRequest request) throws IOException {
+            mmControlTokens.clear();
+            mmControlTokens.add(request.token);
+            long waitNanos = System.nanoTime() - request.queuedNanos;
+            mmOutStream.write(request.data);
+            mmOutStream.flush();
+            mListener.onWrite(mmAddress, LANE_CONTROL, mmControlTokens, mmConnection.queued(), request.data.length, waitNanos);
+            mmControlTokens.clear();
+        }
+
+        /**
+         * Collect bulk writes that arrive within window milliseconds of the
+         * first into mmCoalesceBuffer, stopping early at maxSize bytes, on
+         * flush() or when a control write arrives.
+         *
+         * @return The number of bytes in mmCoalesceBuffer
+         */
+        private int coalesce(WriteRequest first, int window, int maxSize) throws InterruptedException {
+            if (mmCoalesceBuffer.length < maxSize) {
+                mmCoalesceBuffer = new byte[maxSize];
+            }
+            System.arraycopy(first.data, 0, mmCoalesceBuffer, 0, first.data.length);
+            int length = first.data.length;
+
+            long deadline = System.currentTimeMillis() + window;
+            while (length < maxSize && !mmFlushRequested) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || !mmConnection.mmWritesQueued.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+                WriteRequest next = mmConnection.poll();
+                if (next == null) {
+                    break;
+                }
+                if (next.lane == LANE_CONTROL || length + next.data.length > maxSize) {
+                    // send it next, a control write right after this one
+                    mmCarry = next;
+                    break;
+                }
+                System.arraycopy(next.data, 0, mmCoalesceBuffer, length, next.data.length);
+                length += next.data.length;
+                mmBatch.add(next);
+                mmTokens.add(next.token);
+            }
+            return length;
+        }
+
+        private void failTokens() {
+            for (Object token : mmTokens) {
+                mListener.onWriteFailed(mmAddress, token);
+            }
+            mmBatch.clear();
+            mmTokens.clear();
+            for (Object token : mmControlTokens) {
+                mListener.onWriteFailed(mmAddress, token);
+            }
+            mmControlTokens.clear();
+        }
+
+        public void cancel() {
+            mmCanceled = true;
+            interrupt();
+        }
     }
 
     private final BroadcastReceiver _receiver = new BroadcastReceiver() {
@@ -646,41 +1621,38 @@ public class BluetoothSerialService {
             String action = intent.getAction();
 
             if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
-                mHandler.obtainMessage(BluetoothSerial.MESSAGE_DISCOVERY_STARTED).sendToTarget();
+                mListener.onDiscoveryStarted();
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                mHandler.obtainMessage(BluetoothSerial.MESSAGE_DISCOVERY_FINISHED).sendToTarget();
+                mListener.onDiscoveryFinished();
             } else if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 try {
                     BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    if (!device.getName().toLowerCase().equals("callbell")) {
+                    BluetoothClass bluetoothClass = device.getBluetoothClass();
+                    short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DiscoveryFilter.RSSI_UNKNOWN);
+                    DiscoveryFilter filter = mDiscoveryFilter;
+                    if (filter != null && !filter.matches(device.getName(), device.getAddress(), bluetoothClass, rssi)) {
                         return;
                     }
-                    Bundle bundle = new Bundle();
-                    bundle.putString(BluetoothSerial.DATA_DEVICE_NAME, device.getName());
-                    bundle.putString(BluetoothSerial.DATA_DEVICE_ADDRESS, device.getAddress());
-
-                    Message msg = mHandler.obtainMessage(BluetoothSerial.MESSAGE_DEVICE_FOUND);
-                    msg.setData(bundle);
-                    msg.sendToTarget();
+                    mListener.onDeviceFound(device.getName(), device.getAddress(),
+                            bluetoothClass == null ? 0 : bluetoothClass.getDeviceClass(), rssi);
                 } catch (Exception e) {
                     Log.e(TAG, "Exception" + e.getMessage());
                 }
             } else if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
                 int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, 0);
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                BluetoothClass bluetoothClass = device.getBluetoothClass();
+                mListener.onBondStateChanged(device.getName(), device.getAddress(),
+                        bluetoothClass == null ? 0 : bluetoothClass.getDeviceClass(), bondState);
 
                 if (bondState == BluetoothDevice.BOND_BONDED) {
                     String name = device.getName();
                     String address = device.getAddress();
 
-                    Bundle bundle = new Bundle();
-                    bundle.putString(BluetoothSerial.DATA_DEVICE_NAME, name);
-                    bundle.putString(BluetoothSerial.DATA_DEVICE_ADDRESS, address);
-
-                    Message msg = mHandler.obtainMessage(BluetoothSerial.MESSAGE_DEVICE_BONDED);
-                    msg.setData(bundle);
-                    msg.sendToTarget();
+                    mListener.onDeviceBonded(name, address);
                 }
+            } else if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+                mListener.onAdapterStateChanged(intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR));
             }
         }
     };
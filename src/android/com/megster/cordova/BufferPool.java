@@ -0,0 +1,72 @@
+package com.megster.cordova;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of equally sized byte arrays, so connections coming and going do
+ * not allocate a new read buffer each time. When every pooled buffer is in
+ * use a new one is allocated and the exhaustion count goes up; buffers
+ * released beyond the pool size, or of an old size, are left to the GC.
+ */
+public class BufferPool {
+
+    private final ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+    private final int maxPooled;
+    private int bufferSize;
+    private int inUse;
+    private long exhaustedCount;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled <= 0) {
+            throw new IllegalArgumentException("bufferSize and maxPooled must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Take a buffer of the current buffer size from the pool.
+     */
+    public synchronized byte[] acquire() {
+        byte[] buffer = free.poll();
+        if (buffer == null) {
+            if (inUse >= maxPooled) {
+                exhaustedCount++;
+            }
+            buffer = new byte[bufferSize];
+        }
+        inUse++;
+        return buffer;
+    }
+
+    /**
+     * Return a buffer taken with acquire().
+     */
+    public synchronized void release(byte[] buffer) {
+        inUse--;
+        if (buffer.length == bufferSize && free.size() < maxPooled) {
+            free.push(buffer);
+        }
+    }
+
+    /**
+     * Change the size of the buffers handed out from now on. Pooled buffers
+     * of the old size are dropped.
+     */
+    public synchronized void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        if (bufferSize != this.bufferSize) {
+            this.bufferSize = bufferSize;
+            free.clear();
+        }
+    }
+
+    /**
+     * The number of times a buffer was allocated because all pooled buffers were in use.
+     */
+    public synchronized long getExhaustedCount() {
+        return exhaustedCount;
+    }
+}
@@ -0,0 +1,284 @@
+package com.megster.cordova;
+
+import java.nio.BufferOverflowException;
+import java.nio.charset.Charset;
+
+/**
+ * Growable circular byte buffer that holds data received from the remote
+ * device until it is read. Appending copies the bytes once and consuming
+ * from the front only moves the head, so reads do not shift the remaining
+ * data. The backing array starts small and doubles as needed, up to the
+ * configured maximum size. What happens when the maximum is reached is
+ * decided by the overflow policy.
+ */
+public class ByteRingBuffer {
+
+    // Constants that define what happens when appended data does not fit
+    public static final int OVERFLOW_DROP_OLDEST = 0; // discard the oldest buffered bytes
+    public static final int OVERFLOW_DROP_NEWEST = 1; // discard the bytes that do not fit
+    public static final int OVERFLOW_ERROR = 2;       // discard the whole chunk and throw
+
+    public static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    private byte[] data;
+    private int head;
+    private int size;
+    private int maxSize;
+    private int overflowPolicy;
+    private long droppedBytes;
+    private int highWaterMark;
+
+    // how far the last delimiter search got, so the next one resumes there
+    private DelimiterMatcher scanMatcher;
+    private int scanOffset;
+    private int scanState;
+
+    public ByteRingBuffer() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_SIZE, OVERFLOW_DROP_OLDEST);
+    }
+
+    public ByteRingBuffer(int initialCapacity, int maxSize, int overflowPolicy) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.data = new byte[Math.max(1, Math.min(initialCapacity, maxSize))];
+        this.maxSize = maxSize;
+        setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * Append bytes to the end of the buffer, applying the overflow policy if
+     * the buffer would grow past its maximum size.
+     *
+     * @return The number of bytes from src that were stored.
+     * @throws BufferOverflowException If the policy is OVERFLOW_ERROR and the data does not fit.
+     */
+    public synchronized int append(byte[] src, int offset, int length) {
+        if (length <= 0) {
+            return 0;
+        }
+
+        int overflow = size + length - maxSize;
+        if (overflow > 0) {
+            switch (overflowPolicy) {
+                case OVERFLOW_DROP_OLDEST:
+                    if (length >= maxSize) {
+                        // only the tail of the new chunk survives
+                        droppedBytes += size + length - maxSize;
+                        head = 0;
+                        size = 0;
+                        resetScan();
+                        offset += length - maxSize;
+                        length = maxSize;
+                    } else {
+                        droppedBytes += overflow;
+                        skip(overflow);
+                    }
+                    break;
+                case OVERFLOW_DROP_NEWEST:
+                    droppedBytes += overflow;
+                    length -= overflow;
+                    break;
+                default:
+                    droppedBytes += length;
+                    throw new BufferOverflowException();
+            }
+        }
+
+        ensureCapacity(size + length);
+
+        int tail = (head + size) % data.length;
+        int first = Math.min(length, data.length - tail);
+        System.arraycopy(src, offset, data, tail, first);
+        if (first < length) {
+            System.arraycopy(src, offset + first, data, 0, length - first);
+        }
+        size += length;
+        if (size > highWaterMark) {
+            highWaterMark = size;
+        }
+        return length;
+    }
+
+    public int append(byte[] src) {
+        return append(src, 0, src.length);
+    }
+
+    /**
+     * Remove the first count bytes from the buffer and return them.
+     */
+    public synchronized byte[] read(int count) {
+        count = Math.min(count, size);
+        byte[] out = new byte[count];
+        copyTo(0, out, 0, count);
+        skip(count);
+        return out;
+    }
+
+    /**
+     * Remove the first count bytes from the buffer and decode them. When the
+     * bytes don't wrap around the end of the backing array they are decoded
+     * in place, without copying them to a temporary array first.
+     */
+    public synchronized String readString(int count, Charset charset) {
+        count = Math.min(count, size);
+        if (head + count > data.length) {
+            return new String(read(count), charset);
+        }
+        String out = new String(data, head, count, charset);
+        skip(count);
+        return out;
+    }
+
+    /**
+     * Discard the first count bytes from the buffer.
+     */
+    public synchronized void skip(int count) {
+        count = Math.min(count, size);
+        size -= count;
+        head = size == 0 ? 0 : (head + count) % data.length;
+
+        scanOffset -= count;
+        if (scanMatcher != null && scanMatcher.depth(scanState) > scanOffset) {
+            // the partial match started in the discarded bytes
+            resetScan();
+        }
+    }
+
+    /**
+     * Return the byte at index without removing it.
+     */
+    public synchronized byte get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        return data[(head + index) % data.length];
+    }
+
+    /**
+     * Find the first occurrence of pattern in the buffered data.
+     *
+     * @return The index of the start of the pattern, or -1 if it was not found.
+     */
+    public synchronized int indexOf(byte[] pattern) {
+        int last = size - pattern.length;
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+            while (j < pattern.length && data[(head + i + j) % data.length] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the end of the first delimiter recognised by matcher. The search
+     * resumes where the previous search with the same matcher stopped, so
+     * data is scanned once however often this is called as it arrives.
+     *
+     * @return The number of bytes up to and including the delimiter, or -1 if there is none.
+     */
+    public synchronized int indexAfter(DelimiterMatcher matcher) {
+        if (matcher != scanMatcher) {
+            scanMatcher = matcher;
+            resetScan();
+        }
+
+        int state = scanState;
+        int index = (head + scanOffset) % data.length;
+        for (int i = scanOffset; i < size; i++) {
+            int nextState = matcher.next(state, data[index]);
+            if (matcher.isMatch(nextState)) {
+                // stop before the last byte, so the match is found again until it is read
+                scanOffset = i;
+                scanState = state;
+                return i + 1;
+            }
+            state = nextState;
+            if (++index == data.length) {
+                index = 0;
+            }
+        }
+        scanOffset = size;
+        scanState = state;
+        return -1;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+        resetScan();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Change the maximum size. If more data than the new maximum is buffered,
+     * the oldest bytes are discarded.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if (size > maxSize) {
+            droppedBytes += size - maxSize;
+            skip(size - maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    public synchronized void setOverflowPolicy(int overflowPolicy) {
+        if (overflowPolicy < OVERFLOW_DROP_OLDEST || overflowPolicy > OVERFLOW_ERROR) {
+            throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Total number of received bytes discarded because of the overflow policy.
+     */
+    public synchronized long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * The most data the buffer has held at once.
+     */
+    public synchronized int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    private void resetScan() {
+        scanOffset = 0;
+        scanState = 0;
+    }
+
+    private void copyTo(int index, byte[] dest, int destOffset, int count) {
+        int start = (head + index) % data.length;
+        int first = Math.min(count, data.length - start);
+        System.arraycopy(data, start, dest, destOffset, first);
+        if (first < count) {
+            System.arraycopy(data, 0, dest, destOffset + first, count - first);
+        }
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= data.length) {
+            return;
+        }
+        int capacity = data.length;
+        while (capacity < required) {
+            capacity = (int) Math.min((long) capacity * 2, maxSize);
+        }
+        byte[] grown = new byte[capacity];
+        copyTo(0, grown, 0, size);
+        data = grown;
+        head = 0;
+    }
+}
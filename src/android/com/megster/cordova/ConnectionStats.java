@@ -0,0 +1,84 @@
+package com.megster.cordova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms for the connection to one device. They are
+ * updated from the reader, writer and WebCore threads with atomic
+ * operations only, and kept across reconnects.
+ */
+public class ConnectionStats {
+
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final AtomicLong framesIn = new AtomicLong();   // frames or raw chunks sent to subscribers
+    final AtomicLong writes = new AtomicLong();     // writes sent, before coalescing
+    final AtomicLong controlWrites = new AtomicLong();
+    final AtomicLong socketWrites = new AtomicLong();
+    final AtomicLong writeFailures = new AtomicLong();
+    final AtomicLong reconnects = new AtomicLong();
+    final AtomicLong throttles = new AtomicLong();  // times reading was paused by flow control
+    final AtomicLong transactionTimeouts = new AtomicLong();
+    final AtomicLong linkTimeouts = new AtomicLong();  // links closed by the idle timeout
+
+    final Histogram readSize = new Histogram();        // bytes per socket read
+    final Histogram callbackLatency = new Histogram(); // microseconds from socket read to callback
+    final Histogram writeQueueWait = new Histogram();  // microseconds a bulk write waited in the queue
+    final Histogram controlQueueWait = new Histogram(); // microseconds a control write waited in the queue
+    final Histogram transactionTime = new Histogram(); // microseconds from transact to its response
+    final Histogram heartbeatTime = new Histogram();   // microseconds from heartbeat to its reply
+
+    private final long since = System.currentTimeMillis();
+
+    void onRead(int length) {
+        bytesIn.addAndGet(length);
+        readSize.record(length);
+    }
+
+    /**
+     * count frames were sent to a subscriber in one callback, the oldest of
+     * them was read from the socket at readNanos.
+     */
+    void onFrames(int count, long readNanos) {
+        framesIn.addAndGet(count);
+        callbackLatency.record((System.nanoTime() - readNanos) / 1000);
+    }
+
+    void onWrite(int lane, int count, int bytes, long waitNanos) {
+        writes.addAndGet(count);
+        socketWrites.incrementAndGet();
+        bytesOut.addAndGet(bytes);
+        if (lane == BluetoothSerialService.LANE_CONTROL) {
+            controlWrites.addAndGet(count);
+            controlQueueWait.record(waitNanos / 1000);
+        } else {
+            writeQueueWait.record(waitNanos / 1000);
+        }
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("since", since);
+        json.put("bytesIn", bytesIn.get());
+        json.put("bytesOut", bytesOut.get());
+        json.put("framesIn", framesIn.get());
+        json.put("writes", writes.get());
+        json.put("controlWrites", controlWrites.get());
+        json.put("socketWrites", socketWrites.get());
+        json.put("writeFailures", writeFailures.get());
+        json.put("reconnects", reconnects.get());
+        json.put("throttles", throttles.get());
+        json.put("transactionTimeouts", transactionTimeouts.get());
+        json.put("linkTimeouts", linkTimeouts.get());
+        json.put("readSize", readSize.toJSON());
+        json.put("callbackLatency", callbackLatency.toJSON());
+        json.put("writeQueueWait", writeQueueWait.toJSON());
+        json.put("controlQueueWait", controlQueueWait.toJSON());
+        json.put("transactionTime", transactionTime.toJSON());
+        json.put("heartbeatTime", heartbeatTime.toJSON());
+        return json;
+    }
+}
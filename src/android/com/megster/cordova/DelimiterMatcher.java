@@ -0,0 +1,137 @@
+package com.megster.cordova;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the end of any of several delimiters in a byte stream, one byte at
+ * a time. The delimiters are compiled into an Aho-Corasick automaton with
+ * the failure links folded into a full transition table, so each byte costs
+ * one array lookup and a search can stop at any point and resume later from
+ * the saved state.
+ *
+ * State 0 is the start state. A match is reported on the last byte of a
+ * delimiter; when one delimiter is a suffix of another, e.g. "\r\n" and
+ * "\n", the match ends at the same byte either way.
+ */
+public class DelimiterMatcher {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int[][] next;     // next[state][byte & 0xFF]
+    private final boolean[] match;  // a delimiter ends in this state
+    private final int[] depth;      // the number of bytes matched in this state
+
+    public DelimiterMatcher(byte[]... delimiters) {
+        if (delimiters.length == 0) {
+            throw new IllegalArgumentException("At least one delimiter is required");
+        }
+
+        // build the trie
+        List<int[]> trie = new ArrayList<int[]>();
+        List<Boolean> ends = new ArrayList<Boolean>();
+        List<Integer> depths = new ArrayList<Integer>();
+        trie.add(newRow());
+        ends.add(false);
+        depths.add(0);
+        for (byte[] delimiter : delimiters) {
+            if (delimiter.length == 0) {
+                throw new IllegalArgumentException("Delimiters must not be empty");
+            }
+            int state = 0;
+            for (byte b : delimiter) {
+                int c = b & 0xFF;
+                if (trie.get(state)[c] < 0) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newRow());
+                    ends.add(false);
+                    depths.add(depths.get(state) + 1);
+                }
+                state = trie.get(state)[c];
+            }
+            ends.set(state, true);
+        }
+
+        int states = trie.size();
+        next = trie.toArray(new int[states][]);
+        match = new boolean[states];
+        depth = new int[states];
+        for (int i = 0; i < states; i++) {
+            match[i] = ends.get(i);
+            depth[i] = depths.get(i);
+        }
+
+        // breadth first, fill missing transitions from the failure state
+        int[] failure = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < 256; c++) {
+            if (next[0][c] < 0) {
+                next[0][c] = 0;
+            } else {
+                queue[tail++] = next[0][c];
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            match[state] |= match[failure[state]];
+            for (int c = 0; c < 256; c++) {
+                int child = next[state][c];
+                if (child < 0) {
+                    next[state][c] = next[failure[state]][c];
+                } else {
+                    failure[child] = next[failure[state]][c];
+                    queue[tail++] = child;
+                }
+            }
+        }
+    }
+
+    /**
+     * A matcher for delimiter strings, encoded as UTF-8.
+     */
+    public static DelimiterMatcher forStrings(String... delimiters) {
+        return forStrings(UTF_8, delimiters);
+    }
+
+    /**
+     * A matcher for delimiter strings, encoded with the given charset.
+     */
+    public static DelimiterMatcher forStrings(Charset charset, String... delimiters) {
+        byte[][] bytes = new byte[delimiters.length][];
+        for (int i = 0; i < delimiters.length; i++) {
+            bytes[i] = delimiters[i].getBytes(charset);
+        }
+        return new DelimiterMatcher(bytes);
+    }
+
+    private static int[] newRow() {
+        int[] row = new int[256];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    /**
+     * The state after reading b in state.
+     */
+    public int next(int state, byte b) {
+        return next[state][b & 0xFF];
+    }
+
+    /**
+     * True if a delimiter ends in state.
+     */
+    public boolean isMatch(int state) {
+        return match[state];
+    }
+
+    /**
+     * The number of trailing bytes that state depends on.
+     */
+    public int depth(int state) {
+        return depth[state];
+    }
+}
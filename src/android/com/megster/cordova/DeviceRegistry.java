@@ -0,0 +1,161 @@
+package com.megster.cordova;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import org.apache.cordova.*;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The bonded devices, loaded from the adapter and then kept up to date from
+ * the bond state and discovery broadcasts, so list and isPaired don't ask
+ * the adapter each time. Broadcasts can be missed, so the registry is
+ * invalidated and loaded again when Bluetooth is turned on or the app
+ * returns to the foreground. The result of list is built once and reused
+ * until the registry changes.
+ *
+ * Broadcasts arrive on the UI thread and lookups on the WebCore thread, so
+ * all state is guarded by this object's monitor.
+ */
+public class DeviceRegistry {
+
+    static class Device {
+        final String address;
+        String name;
+        int deviceClass;  // as in BluetoothClass, 0 if unknown
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        /**
+         * @return true if the name or class changed
+         */
+        boolean update(String name, int deviceClass) {
+            boolean changed = false;
+            if (name != null && !name.equals(this.name)) {
+                this.name = name;
+                changed = true;
+            }
+            if (deviceClass != 0 && deviceClass != this.deviceClass) {
+                this.deviceClass = deviceClass;
+                changed = true;
+            }
+            return changed;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("address", address);
+            json.put("id", address);
+            if (deviceClass != 0) {
+                json.put("class", deviceClass);
+            }
+            return json;
+        }
+    }
+
+    private final Map<String, Device> bonded = new LinkedHashMap<String, Device>();
+    private boolean loaded;
+    private PluginResult listResult;
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Add the devices the adapter reports as bonded. Changes broadcast
+     * before the registry was loaded are kept.
+     */
+    public synchronized void load(Collection<BluetoothDevice> devices) {
+        for (BluetoothDevice device : devices) {
+            BluetoothClass bluetoothClass = device.getBluetoothClass();
+            deviceFor(device.getAddress()).update(device.getName(),
+                    bluetoothClass == null ? 0 : bluetoothClass.getDeviceClass());
+        }
+        loaded = true;
+        listResult = null;
+    }
+
+    /**
+     * Forget every device, so the next lookup loads them from the adapter again.
+     */
+    public synchronized void invalidate() {
+        bonded.clear();
+        loaded = false;
+        listResult = null;
+    }
+
+    public synchronized boolean isBonded(String address) {
+        return bonded.containsKey(address);
+    }
+
+    /**
+     * The bonded devices as passed to the list callback, reused until the registry changes.
+     */
+    public synchronized PluginResult getListResult() throws JSONException {
+        if (listResult == null) {
+            JSONArray json = new JSONArray();
+            for (Device device : bonded.values()) {
+                json.put(device.toJSON());
+            }
+            listResult = new PluginResult(PluginResult.Status.OK, json);
+        }
+        return listResult;
+    }
+
+    /**
+     * @param bondState As in BluetoothDevice, BOND_BONDED adds the device and anything else removes it
+     * @return true if the registry changed
+     */
+    public synchronized boolean onBondStateChanged(String name, String address, int deviceClass, int bondState) {
+        boolean changed;
+        if (bondState == BluetoothDevice.BOND_BONDED) {
+            changed = !bonded.containsKey(address);
+            changed |= deviceFor(address).update(name, deviceClass);
+        } else {
+            changed = bonded.remove(address) != null;
+        }
+        if (changed) {
+            listResult = null;
+        }
+        return changed;
+    }
+
+    /**
+     * A device was seen by discovery, update its name and class if it is bonded.
+     *
+     * @return true if the registry changed
+     */
+    public synchronized boolean onSeen(String name, String address, int deviceClass) {
+        Device device = bonded.get(address);
+        if (device == null || !device.update(name, deviceClass)) {
+            return false;
+        }
+        listResult = null;
+        return true;
+    }
+
+    /**
+     * The device as passed to the list callback, null if it is not bonded.
+     */
+    public synchronized JSONObject get(String address) throws JSONException {
+        Device device = bonded.get(address);
+        return device == null ? null : device.toJSON();
+    }
+
+    private Device deviceFor(String address) {
+        Device device = bonded.get(address);
+        if (device == null) {
+            device = new Device(address);
+            bonded.put(address, device);
+        }
+        return device;
+    }
+}
@@ -0,0 +1,527 @@
+package com.megster.cordova;
+
+import android.util.Log;
+import org.apache.cordova.*;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.BufferOverflowException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plugin side of the connection to one remote device: the receive
+ * buffer and the JavaScript callbacks interested in it. Data is appended
+ * on the connection's reader thread while the read actions run on the
+ * WebCore thread, so the subscriber state is guarded by this object's
+ * monitor and the buffer by its own.
+ */
+public class DeviceSession {
+
+    private static final String TAG = "BluetoothSerial";
+
+    /**
+     * Told when the receive buffer fills past the high water mark and when
+     * it drains to the low water mark, to stop and start reading the
+     * device. Called with the flow control lock held, so calls are never
+     * reordered.
+     */
+    public interface FlowListener {
+        void onThrottle(DeviceSession session, int buffered);
+
+        void onResume(DeviceSession session, int buffered);
+    }
+
+    private volatile String address;
+    private final ScheduledExecutorService scheduler;
+    private final ByteRingBuffer buffer = new ByteRingBuffer();
+    private final ConnectionStats stats = new ConnectionStats();
+    private final Transactions transactions;
+
+    // callbacks, used from the service threads
+    private volatile CallbackContext connectCallback;
+    private volatile CallbackContext dataAvailableCallback;
+    private volatile CallbackContext rawDataAvailableCallback;
+
+    // set while the service is reconnecting, so the next connect is reported as a reconnect
+    private volatile boolean reconnecting;
+
+    private DelimiterMatcher delimiter;
+    private FrameDecoder decoder;  // set when subscribed with framing options, replaces the delimiter
+
+    // subscribe batching, frames are collected and sent as one JSON array
+    private boolean batchFrames;
+    private int batchMaxFrames;  // send once this many frames are pending, 0 for no limit
+    private int batchInterval;   // milliseconds to wait for more frames, 0 to send right away
+    private JSONArray pendingFrames = new JSONArray();
+    private ScheduledFuture<?> batchFlushFuture;
+    private long pendingSinceNanos;  // when the oldest pending frame was read
+
+    // when the data being delivered was read from the socket, for the latency stats
+    private long readNanos;
+
+    // flow control, reading stops when highWaterMark bytes are buffered and resumes at lowWaterMark
+    private final Object flowLock = new Object();
+    private volatile FlowListener flowListener;
+    private volatile int highWaterMark;  // 0 disables flow control
+    private volatile int lowWaterMark;
+    private volatile boolean throttled;
+
+    // set while writes are queued that were not yet reported drained, used by the connection's writer thread
+    private volatile boolean writesPending;
+
+    // decodes the buffered data and encodes the delimiters
+    private volatile Charset charset = Charset.forName("UTF-8");
+
+    // the matcher used by the last readUntil call
+    private String[] readDelimiters;
+    private DelimiterMatcher readMatcher;
+
+    /**
+     * @param address   The address of the remote device, null until the session is used for a connection
+     * @param scheduler Runs timed work such as batch flushes
+     */
+    public DeviceSession(String address, ScheduledExecutorService scheduler) {
+        this.address = address;
+        this.scheduler = scheduler;
+        this.transactions = new Transactions(scheduler, stats, unsolicitedListener);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public ByteRingBuffer getBuffer() {
+        return buffer;
+    }
+
+    public ConnectionStats getStats() {
+        return stats;
+    }
+
+    public Transactions getTransactions() {
+        return transactions;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Set the charset used to decode the buffered data and to encode
+     * delimiters. Subscribe again for a delimiter subscription to use it.
+     */
+    public synchronized void setCharset(Charset charset) {
+        this.charset = charset;
+        readMatcher = null;
+    }
+
+    public void setConnectCallback(CallbackContext callbackContext) {
+        connectCallback = callbackContext;
+    }
+
+    public void setFlowListener(FlowListener flowListener) {
+        this.flowListener = flowListener;
+    }
+
+    /**
+     * Pause reading the device while more than highWaterMark bytes are
+     * buffered, until the app reads the buffer down to lowWaterMark.
+     *
+     * @param highWaterMark Bytes, 0 to never pause
+     * @param lowWaterMark  Bytes, less than highWaterMark
+     * @throws IllegalArgumentException If the marks are out of order
+     */
+    public void setWaterMarks(int highWaterMark, int lowWaterMark) {
+        if (highWaterMark < 0 || lowWaterMark < 0 || (highWaterMark > 0 && lowWaterMark >= highWaterMark)) {
+            throw new IllegalArgumentException("lowWaterMark must be less than highWaterMark");
+        }
+        synchronized (flowLock) {
+            this.highWaterMark = highWaterMark;
+            this.lowWaterMark = lowWaterMark;
+        }
+        updateFlowControl();
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    /**
+     * Note the write queue depth after writes were sent.
+     *
+     * @param appWrite True if the app's writes were sent, false for a heartbeat
+     * @return True if the queue has drained, so the app should be told
+     */
+    public boolean onWriteQueueDepth(int queued, boolean appWrite) {
+        if (queued > 0) {
+            writesPending = true;
+            return false;
+        }
+        // a heartbeat that was sent last only drains the queue if the app's writes were waiting behind it
+        boolean drained = appWrite || writesPending;
+        writesPending = false;
+        return drained;
+    }
+
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    public void setReconnecting(boolean reconnecting) {
+        this.reconnecting = reconnecting;
+    }
+
+    /**
+     * Called on the reader thread with the data received from the device.
+     */
+    public void onRead(byte[] data, int length) {
+        long now = System.nanoTime();
+        stats.onRead(length);
+
+        if (rawDataAvailableCallback != null) {
+            // PluginResult encodes the bytes when it is created, so a full read buffer can be sent without a copy
+            sendRawDataToSubscriber(length == data.length ? data : Arrays.copyOf(data, length), now);
+        }
+
+        int offset;
+        synchronized (this) {
+            readNanos = now;
+            // responses to pending transactions are taken out first
+            offset = transactions.hasPending() ? transactions.onData(data, 0, length) : 0;
+            if (decoder != null) {
+                // framed data goes straight to the subscriber, it is never buffered for read()
+                decoder.decode(data, offset, length - offset, frameListener);
+                return;
+            }
+            if (rawDataAvailableCallback != null && dataAvailableCallback == null) {
+                // the raw subscriber already has the data, it is not kept for read()
+                return;
+            }
+        }
+
+        if (offset < length) {
+            try {
+                buffer.append(data, offset, length - offset);
+            } catch (BufferOverflowException e) {
+                notifyBufferOverflow();
+            }
+        }
+
+        if (dataAvailableCallback != null) {
+            sendDataToSubscriber();
+        }
+        updateFlowControl();
+    }
+
+    /**
+     * Discard any partial frame, so bytes of a link that was lost are never
+     * joined to those of the next one. Called when a link is lost and before
+     * a new one is connected.
+     */
+    public synchronized void resetFraming() {
+        if (decoder != null) {
+            decoder.reset();
+        }
+    }
+
+    public void notifyConnectionLost(String error) {
+        resetFraming();
+        transactions.failAll(error, 410);
+        CallbackContext callback = connectCallback;
+        if (callback != null) {
+            callback.error(error);
+            connectCallback = null;
+        }
+        callback = dataAvailableCallback;
+        if (callback != null) {
+            callback.error(error);
+        }
+    }
+
+    public void notifyConnectionSuccess() {
+        CallbackContext callback = connectCallback;
+        if (callback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK);
+            result.setKeepCallback(true);
+            callback.sendPluginResult(result);
+        }
+    }
+
+    /**
+     * @param delimiter Finds the end of each frame, ignored if decoder is set
+     * @param options   Batching options, null to send each frame by itself
+     * @param decoder   Splits received data into binary frames, null to use the delimiter
+     */
+    public synchronized void subscribe(DelimiterMatcher delimiter, JSONObject options, FrameDecoder decoder, CallbackContext callbackContext) {
+        cancelBatch();
+        if (decoder != null) {
+            // start at a frame boundary, whatever the decoder saw before
+            decoder.reset();
+        }
+        this.delimiter = delimiter;
+        this.decoder = decoder;
+        // binary frames can't be sent in a JSON array, so they are never batched
+        batchFrames = options != null && decoder == null;
+        if (batchFrames) {
+            batchMaxFrames = options.optInt("maxFrames", 0);
+            batchInterval = options.optInt("interval", 0);
+        }
+        dataAvailableCallback = callbackContext;
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+
+        // send what was received before subscribing, reading may be paused until it is consumed
+        if (decoder == null && buffer.size() > 0) {
+            sendDataToSubscriber();
+        }
+        updateFlowControl();
+    }
+
+    public void unsubscribe() {
+        synchronized (this) {
+            cancelBatch();
+            delimiter = null;
+            decoder = null;
+            dataAvailableCallback = null;
+        }
+        updateFlowControl();
+    }
+
+    public void subscribeRawData(CallbackContext callbackContext) {
+        rawDataAvailableCallback = callbackContext;
+
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+        updateFlowControl();
+    }
+
+    public void unsubscribeRawData() {
+        rawDataAvailableCallback = null;
+        updateFlowControl();
+    }
+
+    /**
+     * True if nothing is subscribed, buffered or waiting for a response.
+     */
+    public boolean isIdle() {
+        return dataAvailableCallback == null && rawDataAvailableCallback == null && buffer.size() == 0
+                && !transactions.hasPending();
+    }
+
+    public int available() {
+        return buffer.size();
+    }
+
+    public String read() {
+        String data = buffer.readString(Integer.MAX_VALUE, charset);
+        updateFlowControl();
+        return data;
+    }
+
+    /**
+     * Read the data up to and including the first of the delimiters.
+     *
+     * @return The data, or an empty string if no delimiter has been received.
+     */
+    public String readUntil(String... delimiters) {
+        DelimiterMatcher matcher;
+        synchronized (this) {
+            // keep the matcher while the delimiters don't change, so the search resumes where it stopped
+            if (readMatcher == null || !Arrays.equals(readDelimiters, delimiters)) {
+                readMatcher = DelimiterMatcher.forStrings(charset, delimiters);
+                readDelimiters = delimiters.clone();
+            }
+            matcher = readMatcher;
+        }
+        String data = readUntil(matcher);
+        updateFlowControl();
+        return data;
+    }
+
+    private String readUntil(DelimiterMatcher matcher) {
+        String data = "";
+        synchronized (buffer) {
+            int length = buffer.indexAfter(matcher);
+            if (length > -1) {
+                data = buffer.readString(length, charset);
+            }
+        }
+        return data;
+    }
+
+    public void clear() {
+        buffer.clear();
+        updateFlowControl();
+    }
+
+    /**
+     * The stats for this device, with the state of its receive buffer.
+     */
+    public JSONObject getStatsJSON() throws JSONException {
+        JSONObject json = stats.toJSON();
+        json.put("id", address);
+        json.put("buffered", buffer.size());
+        json.put("bufferHighWaterMark", buffer.getHighWaterMark());
+        json.put("droppedBytes", buffer.getDroppedBytes());
+        json.put("throttled", throttled);
+        return json;
+    }
+
+    /**
+     * The buffered bytes that the app has not seen yet. With only a raw data
+     * subscriber every byte was passed to it as it arrived, so nothing is
+     * waiting even though the buffer keeps a copy for read().
+     */
+    private int waitingBytes() {
+        if (rawDataAvailableCallback != null && dataAvailableCallback == null) {
+            return 0;
+        }
+        return buffer.size();
+    }
+
+    // Throttle or resume the device when the bytes waiting for the app cross a water mark
+    private void updateFlowControl() {
+        if (highWaterMark == 0 && !throttled) {
+            return;
+        }
+        synchronized (flowLock) {
+            int size = waitingBytes();
+            FlowListener listener = flowListener;
+            if (!throttled && highWaterMark > 0 && size >= highWaterMark) {
+                throttled = true;
+                stats.throttles.incrementAndGet();
+                if (listener != null) {
+                    listener.onThrottle(this, size);
+                }
+            } else if (throttled && (highWaterMark == 0 || size <= lowWaterMark)) {
+                throttled = false;
+                if (listener != null) {
+                    listener.onResume(this, size);
+                }
+            }
+        }
+    }
+
+    private void notifyBufferOverflow() {
+        Log.w(TAG, "Receive buffer for " + address + " is full, discarding data");
+        CallbackContext callback = dataAvailableCallback;
+        if (callback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.ERROR, "Receive buffer overflow.");
+            result.setKeepCallback(true);
+            callback.sendPluginResult(result);
+        }
+    }
+
+    private void sendRawDataToSubscriber(byte[] data, long readNanos) {
+        CallbackContext callback = rawDataAvailableCallback;
+        if (callback != null && data.length > 0) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+            result.setKeepCallback(true);
+            callback.sendPluginResult(result);
+            stats.onFrames(1, readNanos);
+        }
+    }
+
+    private synchronized void sendDataToSubscriber() {
+        if (dataAvailableCallback == null || delimiter == null) {
+            return;
+        }
+
+        String data = readUntil(delimiter);
+        while (data.length() > 0) {
+            if (batchFrames) {
+                if (pendingFrames.length() == 0) {
+                    pendingSinceNanos = readNanos;
+                }
+                pendingFrames.put(data);
+                if (batchMaxFrames > 0 && pendingFrames.length() >= batchMaxFrames) {
+                    sendPendingFrames();
+                }
+            } else {
+                PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+                result.setKeepCallback(true);
+                dataAvailableCallback.sendPluginResult(result);
+                stats.onFrames(1, readNanos);
+            }
+            data = readUntil(delimiter);
+        }
+
+        if (batchFrames && pendingFrames.length() > 0) {
+            if (batchInterval <= 0) {
+                sendPendingFrames();
+            } else if (batchFlushFuture == null) {
+                batchFlushFuture = scheduler.schedule(batchFlush, batchInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // Send all pending frames to the subscriber in a single bridge call
+    private synchronized void sendPendingFrames() {
+        if (pendingFrames.length() > 0 && dataAvailableCallback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, pendingFrames);
+            result.setKeepCallback(true);
+            dataAvailableCallback.sendPluginResult(result);
+            stats.onFrames(pendingFrames.length(), pendingSinceNanos);
+        }
+        pendingFrames = new JSONArray();
+    }
+
+    private synchronized void cancelBatch() {
+        if (batchFlushFuture != null) {
+            batchFlushFuture.cancel(false);
+            batchFlushFuture = null;
+        }
+        pendingFrames = new JSONArray();
+    }
+
+    private final FrameDecoder.Listener frameListener = new FrameDecoder.Listener() {
+        public void onFrame(byte[] frame) {
+            CallbackContext callback = dataAvailableCallback;
+            if (callback != null) {
+                PluginResult result = new PluginResult(PluginResult.Status.OK, frame);
+                result.setKeepCallback(true);
+                callback.sendPluginResult(result);
+                stats.onFrames(1, readNanos);
+            }
+        }
+    };
+
+    // Frames that match no transaction are handled as if they had arrived with no transaction pending
+    private final FrameDecoder.Listener unsolicitedListener = new FrameDecoder.Listener() {
+        public void onFrame(byte[] frame) {
+            if (decoder != null) {
+                frameListener.onFrame(frame);
+                return;
+            }
+            if (rawDataAvailableCallback != null && dataAvailableCallback == null) {
+                return;
+            }
+            try {
+                buffer.append(frame);
+            } catch (BufferOverflowException e) {
+                notifyBufferOverflow();
+            }
+        }
+    };
+
+    private final Runnable batchFlush = new Runnable() {
+        public void run() {
+            synchronized (DeviceSession.this) {
+                batchFlushFuture = null;
+                sendPendingFrames();
+            }
+        }
+    };
+}
@@ -0,0 +1,139 @@
+package com.megster.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The devices found by one discovery, keyed by address. Repeat sightings of
+ * a device are merged into one entry that tracks its signal strength and
+ * when it was seen. Sightings arrive on the broadcast receiver and the
+ * table is read on the scheduler, so it is guarded by this object's monitor.
+ */
+public class DiscoveredDevices {
+
+    /**
+     * One device and its sightings.
+     */
+    static class Device {
+        final String address;
+        String name;
+        int deviceClass;
+        int rssi = DiscoveryFilter.RSSI_UNKNOWN;
+        int minRssi = DiscoveryFilter.RSSI_UNKNOWN;
+        int maxRssi = DiscoveryFilter.RSSI_UNKNOWN;
+        long firstSeen;
+        long lastSeen;
+        int sightings;
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("address", address);
+            json.put("id", address);
+            json.put("class", deviceClass);
+            if (rssi != DiscoveryFilter.RSSI_UNKNOWN) {
+                json.put("rssi", rssi);
+                json.put("minRssi", minRssi);
+                json.put("maxRssi", maxRssi);
+            }
+            json.put("firstSeen", firstSeen);
+            json.put("lastSeen", lastSeen);
+            json.put("sightings", sightings);
+            return json;
+        }
+    }
+
+    // strongest signal first, devices without an RSSI last
+    private static final Comparator<Device> BY_SIGNAL = new Comparator<Device>() {
+        public int compare(Device a, Device b) {
+            if (a.rssi != b.rssi) {
+                return a.rssi > b.rssi ? -1 : 1;
+            }
+            return a.address.compareTo(b.address);
+        }
+    };
+
+    private final Map<String, Device> devices = new LinkedHashMap<String, Device>();
+    // seen since the last call to takeChanges, in the order they were seen
+    private final Map<String, Device> changed = new LinkedHashMap<String, Device>();
+
+    /**
+     * Record a sighting.
+     *
+     * @param name        The device name, null if it has none
+     * @param deviceClass The device class, as in BluetoothClass
+     * @param rssi        The signal strength in dBm, RSSI_UNKNOWN if unknown
+     * @param now         The time of the sighting in milliseconds since the epoch
+     * @return true if this is the first sighting of the device
+     */
+    public synchronized boolean onFound(String name, String address, int deviceClass, int rssi, long now) {
+        Device device = devices.get(address);
+        boolean first = device == null;
+        if (first) {
+            device = new Device(address);
+            device.firstSeen = now;
+            devices.put(address, device);
+        }
+        if (name != null) {
+            device.name = name;
+        }
+        if (deviceClass != 0) {
+            device.deviceClass = deviceClass;
+        }
+        if (rssi != DiscoveryFilter.RSSI_UNKNOWN) {
+            device.rssi = rssi;
+            device.minRssi = device.minRssi == DiscoveryFilter.RSSI_UNKNOWN ? rssi : Math.min(device.minRssi, rssi);
+            device.maxRssi = device.maxRssi == DiscoveryFilter.RSSI_UNKNOWN ? rssi : Math.max(device.maxRssi, rssi);
+        }
+        device.lastSeen = now;
+        device.sightings++;
+        changed.put(address, device);
+        return first;
+    }
+
+    public synchronized JSONObject get(String address) throws JSONException {
+        Device device = devices.get(address);
+        return device == null ? null : device.toJSON();
+    }
+
+    public synchronized int size() {
+        return devices.size();
+    }
+
+    /**
+     * The devices seen since the last call, new or seen again.
+     */
+    public synchronized JSONArray takeChanges() throws JSONException {
+        JSONArray json = new JSONArray();
+        for (Device device : changed.values()) {
+            json.put(device.toJSON());
+        }
+        changed.clear();
+        return json;
+    }
+
+    /**
+     * Every device, strongest signal first.
+     */
+    public synchronized JSONArray toJSON() throws JSONException {
+        List<Device> sorted = new ArrayList<Device>(devices.values());
+        Collections.sort(sorted, BY_SIGNAL);
+        JSONArray json = new JSONArray();
+        for (Device device : sorted) {
+            json.put(device.toJSON());
+        }
+        return json;
+    }
+}
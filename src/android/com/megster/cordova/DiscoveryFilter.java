@@ -0,0 +1,135 @@
+package com.megster.cordova;
+
+import android.bluetooth.BluetoothClass;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which devices found by discovery are passed on. It is checked on
+ * the broadcast receiver, so devices that don't match never reach the
+ * listener or the bridge. A device matches when it passes every criterion
+ * that was given; with none, every device matches.
+ */
+public class DiscoveryFilter {
+
+    /**
+     * The RSSI of a device found without one.
+     */
+    public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    private final Pattern name;
+    private final List<String> addressPrefixes;
+    private final int[] deviceClasses;
+    private final int minRssi;
+
+    /**
+     * @param name            Found in the device name, null to match any name
+     * @param addressPrefixes Upper case address prefixes such as an OUI "00:11:22", empty to match any address
+     * @param deviceClasses   Major or full device classes, as in BluetoothClass, empty to match any class
+     * @param minRssi         The weakest signal in dBm, RSSI_UNKNOWN to match devices out of range too
+     */
+    public DiscoveryFilter(Pattern name, List<String> addressPrefixes, int[] deviceClasses, int minRssi) {
+        this.name = name;
+        this.addressPrefixes = addressPrefixes;
+        this.deviceClasses = deviceClasses;
+        this.minRssi = minRssi;
+    }
+
+    /**
+     * Create a filter from the options passed from JavaScript:
+     *
+     *   {name: "^Scanner-\\d+$", address: ["00:11:22", "00:33:44"], deviceClass: [0x0600], minRssi: -80}
+     *
+     * address may also be a single prefix.
+     *
+     * @throws IllegalArgumentException If the options are not valid.
+     */
+    public static DiscoveryFilter fromOptions(JSONObject options) {
+        Pattern name = null;
+        String regex = options.optString("name", null);
+        if (regex != null) {
+            try {
+                name = Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid name pattern: " + e.getDescription());
+            }
+        }
+
+        List<String> addressPrefixes = new ArrayList<String>();
+        JSONArray addresses = options.optJSONArray("address");
+        if (addresses == null && options.has("address")) {
+            addresses = new JSONArray().put(options.optString("address"));
+        }
+        for (int i = 0; addresses != null && i < addresses.length(); i++) {
+            String prefix = addresses.optString(i);
+            if (prefix.length() == 0) {
+                throw new IllegalArgumentException("Invalid address prefix");
+            }
+            addressPrefixes.add(prefix.toUpperCase(Locale.US));
+        }
+
+        JSONArray classes = options.optJSONArray("deviceClass");
+        if (classes == null && options.has("deviceClass")) {
+            classes = new JSONArray().put(options.opt("deviceClass"));
+        }
+        int[] deviceClasses = new int[classes == null ? 0 : classes.length()];
+        for (int i = 0; i < deviceClasses.length; i++) {
+            deviceClasses[i] = classes.optInt(i, -1);
+            if (deviceClasses[i] < 0) {
+                throw new IllegalArgumentException("Invalid device class");
+            }
+        }
+
+        int minRssi = options.has("minRssi") ? options.optInt("minRssi", 0) : RSSI_UNKNOWN;
+        return new DiscoveryFilter(name, addressPrefixes, deviceClasses, minRssi);
+    }
+
+    /**
+     * @param name           The device name, null if it has none
+     * @param bluetoothClass The device class, null if unknown
+     * @param rssi           The signal strength in dBm, RSSI_UNKNOWN if unknown
+     */
+    public boolean matches(String name, String address, BluetoothClass bluetoothClass, int rssi) {
+        if (this.name != null && (name == null || !this.name.matcher(name).find())) {
+            return false;
+        }
+        if (!addressPrefixes.isEmpty() && !matchesAddress(address)) {
+            return false;
+        }
+        if (deviceClasses.length > 0 && !matchesClass(bluetoothClass)) {
+            return false;
+        }
+        return minRssi == RSSI_UNKNOWN || (rssi != RSSI_UNKNOWN && rssi >= minRssi);
+    }
+
+    private boolean matchesAddress(String address) {
+        if (address == null) {
+            return false;
+        }
+        String upper = address.toUpperCase(Locale.US);
+        for (String prefix : addressPrefixes) {
+            if (upper.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesClass(BluetoothClass bluetoothClass) {
+        if (bluetoothClass == null) {
+            return false;
+        }
+        for (int deviceClass : deviceClasses) {
+            if (deviceClass == bluetoothClass.getDeviceClass() || deviceClass == bluetoothClass.getMajorDeviceClass()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,34 @@
+package com.megster.cordova;
+
+/**
+ * Splits the byte stream received from a device into frames. Decoders are
+ * incremental: data is passed in as it arrives, each byte is examined once
+ * and the scan state is kept between calls, so a frame may span any number
+ * of reads. Implementations are not thread safe.
+ */
+public interface FrameDecoder {
+
+    /**
+     * Receives the frames found by a decoder.
+     */
+    interface Listener {
+        void onFrame(byte[] frame);
+    }
+
+    /**
+     * Scan length bytes of data starting at offset, passing every complete
+     * frame to listener. Bytes of an incomplete frame are kept until the
+     * rest of it arrives.
+     */
+    void decode(byte[] data, int offset, int length, Listener listener);
+
+    /**
+     * @return true while the start of a frame has been decoded but not its end.
+     */
+    boolean isPartial();
+
+    /**
+     * Discard any partial frame and start again.
+     */
+    void reset();
+}
@@ -0,0 +1,373 @@
+package com.megster.cordova;
+
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The frame decoders supported by subscribe, created from the framing
+ * options passed from JavaScript:
+ *
+ *   {type: "delimiter", delimiter: "\n" or [13, 10], delimiters: ["\r\n", "\n"]}
+ *   {type: "lengthPrefix", headerSize: 1|2|4, byteOrder: "big"|"little", lengthIncludesHeader: false}
+ *   {type: "cobs"}
+ *   {type: "slip"}
+ *   {type: "fixed", size: 16}
+ *
+ * Every type also takes maxFrameSize, frames longer than this are dropped.
+ */
+public class FrameDecoders {
+
+    private static final String TAG = "BluetoothSerial";
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+    /**
+     * Create a decoder from framing options.
+     *
+     * @throws IllegalArgumentException If the options are not valid.
+     */
+    public static FrameDecoder fromOptions(JSONObject options) {
+        String type = options.optString("type", "");
+        int maxFrameSize = options.optInt("maxFrameSize", DEFAULT_MAX_FRAME_SIZE);
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("maxFrameSize must be positive");
+        }
+
+        if (type.equals("delimiter")) {
+            return new DelimiterDecoder(delimiterMatcher(options), maxFrameSize);
+        } else if (type.equals("lengthPrefix")) {
+            int headerSize = options.optInt("headerSize", 2);
+            if (headerSize != 1 && headerSize != 2 && headerSize != 4) {
+                throw new IllegalArgumentException("headerSize must be 1, 2 or 4");
+            }
+            String byteOrder = options.optString("byteOrder", "big");
+            if (!byteOrder.equals("big") && !byteOrder.equals("little")) {
+                throw new IllegalArgumentException("byteOrder must be big or little");
+            }
+            return new LengthPrefixDecoder(headerSize, byteOrder.equals("little"),
+                    options.optBoolean("lengthIncludesHeader", false), maxFrameSize);
+        } else if (type.equals("cobs")) {
+            return new CobsDecoder(maxFrameSize);
+        } else if (type.equals("slip")) {
+            return new SlipDecoder(maxFrameSize);
+        } else if (type.equals("fixed")) {
+            int size = options.optInt("size", 0);
+            if (size <= 0) {
+                throw new IllegalArgumentException("size must be positive");
+            }
+            return new FixedSizeDecoder(size);
+        }
+        throw new IllegalArgumentException("Unknown framing type " + type);
+    }
+
+    // The delimiter is a string (sent as UTF-8) or an array of byte values,
+    // or delimiters is an array of alternative strings
+    private static DelimiterMatcher delimiterMatcher(JSONObject options) {
+        JSONArray alternatives = options.optJSONArray("delimiters");
+        if (alternatives != null) {
+            byte[][] delimiters = new byte[alternatives.length()][];
+            for (int i = 0; i < delimiters.length; i++) {
+                delimiters[i] = alternatives.optString(i).getBytes(Charset.forName("UTF-8"));
+            }
+            return new DelimiterMatcher(delimiters);
+        }
+
+        JSONArray values = options.optJSONArray("delimiter");
+        byte[] delimiter;
+        if (values != null) {
+            delimiter = new byte[values.length()];
+            for (int i = 0; i < delimiter.length; i++) {
+                delimiter[i] = (byte) values.optInt(i);
+            }
+        } else {
+            delimiter = options.optString("delimiter", "").getBytes(Charset.forName("UTF-8"));
+        }
+        return new DelimiterMatcher(delimiter);
+    }
+
+    /**
+     * Collects the bytes of the frame being decoded. Frames that grow past
+     * maxFrameSize are dropped, the decoder skips ahead to the next frame.
+     */
+    private abstract static class FrameBuilder implements FrameDecoder {
+        private final int maxFrameSize;
+        private byte[] frame = new byte[64];
+        private int length;
+        private boolean oversize;
+
+        FrameBuilder(int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+        }
+
+        void put(byte b) {
+            if (oversize) {
+                return;
+            }
+            if (length == maxFrameSize) {
+                Log.w(TAG, "Frame larger than " + maxFrameSize + " bytes, dropping it");
+                oversize = true;
+                return;
+            }
+            if (length == frame.length) {
+                frame = Arrays.copyOf(frame, Math.min(frame.length * 2, maxFrameSize));
+            }
+            frame[length++] = b;
+        }
+
+        int length() {
+            return length;
+        }
+
+        // Pass the collected frame to the listener and start the next one
+        void emit(Listener listener) {
+            if (!oversize) {
+                listener.onFrame(Arrays.copyOf(frame, length));
+            }
+            discard();
+        }
+
+        void discard() {
+            length = 0;
+            oversize = false;
+        }
+
+        public boolean isPartial() {
+            return length > 0 || oversize;
+        }
+
+        public void reset() {
+            discard();
+        }
+    }
+
+    /**
+     * Frames end with a delimiter, which is included in the frame. The
+     * matcher state is kept between reads, so a delimiter split across
+     * reads is found without rescanning.
+     */
+    static class DelimiterDecoder extends FrameBuilder {
+        private final DelimiterMatcher matcher;
+        private int state;
+
+        DelimiterDecoder(DelimiterMatcher matcher, int maxFrameSize) {
+            super(maxFrameSize);
+            this.matcher = matcher;
+        }
+
+        public void decode(byte[] data, int offset, int length, Listener listener) {
+            for (int i = offset; i < offset + length; i++) {
+                put(data[i]);
+                state = matcher.next(state, data[i]);
+                if (matcher.isMatch(state)) {
+                    emit(listener);
+                    state = 0;
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            state = 0;
+        }
+    }
+
+    /**
+     * Each frame starts with an unsigned length header of headerSize bytes.
+     * The header is not part of the frame passed to the listener.
+     */
+    static class LengthPrefixDecoder extends FrameBuilder {
+        private final int headerSize;
+        private final boolean littleEndian;
+        private final boolean lengthIncludesHeader;
+        private int headerRead;
+        private long frameLength;
+        private long remaining;
+
+        LengthPrefixDecoder(int headerSize, boolean littleEndian, boolean lengthIncludesHeader, int maxFrameSize) {
+            super(maxFrameSize);
+            this.headerSize = headerSize;
+            this.littleEndian = littleEndian;
+            this.lengthIncludesHeader = lengthIncludesHeader;
+        }
+
+        public void decode(byte[] data, int offset, int length, Listener listener) {
+            int end = offset + length;
+            int i = offset;
+            while (i < end) {
+                if (headerRead < headerSize) {
+                    long b = data[i++] & 0xFF;
+                    if (littleEndian) {
+                        frameLength |= b << (8 * headerRead);
+                    } else {
+                        frameLength = (frameLength << 8) | b;
+                    }
+                    headerRead++;
+                    if (headerRead == headerSize) {
+                        remaining = lengthIncludesHeader ? frameLength - headerSize : frameLength;
+                        if (remaining < 0) {
+                            Log.w(TAG, "Invalid frame length " + frameLength + ", dropping it");
+                            remaining = 0;
+                        } else if (remaining == 0) {
+                            emit(listener);
+                        }
+                        if (remaining == 0) {
+                            startHeader();
+                        }
+                    }
+                } else {
+                    // copy as much of the frame body as this chunk holds
+                    int count = (int) Math.min(remaining, end - i);
+                    for (int j = 0; j < count; j++) {
+                        put(data[i + j]);
+                    }
+                    i += count;
+                    remaining -= count;
+                    if (remaining == 0) {
+                        emit(listener);
+                        startHeader();
+                    }
+                }
+            }
+        }
+
+        private void startHeader() {
+            headerRead = 0;
+            frameLength = 0;
+        }
+
+        @Override
+        public boolean isPartial() {
+            return headerRead > 0 || super.isPartial();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            startHeader();
+            remaining = 0;
+        }
+    }
+
+    /**
+     * Consistent Overhead Byte Stuffing, frames end with a zero byte. The
+     * zero that ends each block is only added once the next block code is
+     * seen, so the implicit zero at the end of the frame is never added.
+     */
+    static class CobsDecoder extends FrameBuilder {
+        private int code;
+        private int remaining;
+
+        CobsDecoder(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        public void decode(byte[] data, int offset, int length, Listener listener) {
+            for (int i = offset; i < offset + length; i++) {
+                int b = data[i] & 0xFF;
+                if (b == 0) {
+                    if (remaining != 0) {
+                        Log.w(TAG, "Truncated COBS frame, dropping it");
+                        discard();
+                    } else if (code != 0) {
+                        emit(listener);
+                    }
+                    code = 0;
+                    remaining = 0;
+                } else if (remaining == 0) {
+                    if (code != 0 && code != 0xFF) {
+                        put((byte) 0);
+                    }
+                    code = b;
+                    remaining = b - 1;
+                } else {
+                    put((byte) b);
+                    remaining--;
+                }
+            }
+        }
+
+        @Override
+        public boolean isPartial() {
+            return code != 0 || super.isPartial();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            code = 0;
+            remaining = 0;
+        }
+    }
+
+    /**
+     * SLIP (RFC 1055) framing, empty frames between END bytes are ignored.
+     */
+    static class SlipDecoder extends FrameBuilder {
+        private static final int END = 0xC0;
+        private static final int ESC = 0xDB;
+        private static final int ESC_END = 0xDC;
+        private static final int ESC_ESC = 0xDD;
+
+        private boolean escaped;
+
+        SlipDecoder(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        public void decode(byte[] data, int offset, int length, Listener listener) {
+            for (int i = offset; i < offset + length; i++) {
+                int b = data[i] & 0xFF;
+                if (b == END) {
+                    if (length() > 0) {
+                        emit(listener);
+                    }
+                    escaped = false;
+                } else if (escaped) {
+                    put((byte) (b == ESC_END ? END : b == ESC_ESC ? ESC : b));
+                    escaped = false;
+                } else if (b == ESC) {
+                    escaped = true;
+                } else {
+                    put((byte) b);
+                }
+            }
+        }
+
+        @Override
+        public boolean isPartial() {
+            return escaped || super.isPartial();
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            escaped = false;
+        }
+    }
+
+    /**
+     * Every frame is size bytes long.
+     */
+    static class FixedSizeDecoder extends FrameBuilder {
+        private final int size;
+
+        FixedSizeDecoder(int size) {
+            super(size);
+            this.size = size;
+        }
+
+        public void decode(byte[] data, int offset, int length, Listener listener) {
+            for (int i = offset; i < offset + length; i++) {
+                put(data[i]);
+                if (length() == size) {
+                    emit(listener);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.megster.cordova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative long values with log-linear buckets, in the
+ * style of HdrHistogram: values below 16 have a bucket each, larger values
+ * share 8 buckets per power of two, so any value is recorded to within
+ * 12.5%. Recording is a few atomic increments with no locks or allocation,
+ * cheap enough to leave on in production. Snapshots taken while values are
+ * recorded may be slightly inconsistent.
+ */
+public class Histogram {
+
+    private static final int LINEAR = 16;      // values below this have their own bucket
+    private static final int SUB_BITS = 3;     // 8 buckets per power of two above that
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The value below which the given fraction of recorded values fall, to
+     * within the bucket precision.
+     */
+    public long getPercentile(double fraction) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * {count, mean, p50, p90, p99, max}
+     */
+    public JSONObject toJSON() throws JSONException {
+        long total = count.get();
+        JSONObject json = new JSONObject();
+        json.put("count", total);
+        json.put("mean", total == 0 ? 0 : sum.get() / total);
+        json.put("p50", getPercentile(0.5));
+        json.put("p90", getPercentile(0.9));
+        json.put("p99", getPercentile(0.99));
+        json.put("max", max.get());
+        return json;
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    // the largest value that falls in bucket
+    static long highestValue(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        long lowest = (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,346 @@
+package com.megster.cordova;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Bluetooth RFCOMM connection using the Serial Port Profile.
+ *
+ * An outgoing connection tries a list of strategies in turn until one
+ * connects: a secure or insecure socket found by SDP lookup of the SPP
+ * UUID, or a socket on a fixed RFCOMM channel through a hidden API for
+ * devices with a broken SDP record. The strategy that worked last time is
+ * tried first, and forgotten once it fails. With a deadline the whole
+ * connect gives up once it passes rather than after every strategy has
+ * timed out.
+ */
+public class RfcommTransport implements SerialTransport {
+
+    private static final String TAG = "RfcommTransport";
+
+    // Well known SPP UUID
+    static final UUID UUID_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    public static final String STRATEGY_SECURE = "secure";
+    public static final String STRATEGY_INSECURE = "insecure";
+    public static final String STRATEGY_CHANNEL = "channel";
+
+    // channel strategy default, the channel most SPP devices use
+    public static final int DEFAULT_CHANNEL = 1;
+
+    /**
+     * One strategy tried by connect().
+     */
+    public static class Attempt {
+        public final String strategy;
+        public final long millis;
+        public final String error;  // null if it connected
+
+        Attempt(String strategy, long millis, String error) {
+            this.strategy = strategy;
+            this.millis = millis;
+            this.error = error;
+        }
+    }
+
+    /**
+     * What worked for each device, and the attempts of its last connect.
+     * Shared by every connect, so it is guarded by its monitor.
+     */
+    public static class Cache {
+        private final Map<String, String> strategies = new HashMap<String, String>();
+        private final Map<String, Integer> channels = new HashMap<String, Integer>();
+        private final Map<String, List<Attempt>> attempts = new HashMap<String, List<Attempt>>();
+
+        public synchronized String getStrategy(String address) {
+            return strategies.get(address);
+        }
+
+        /**
+         * @return The RFCOMM channel the channel strategy last connected on, or defaultChannel if unknown
+         */
+        public synchronized int getChannel(String address, int defaultChannel) {
+            Integer channel = channels.get(address);
+            return channel == null ? defaultChannel : channel;
+        }
+
+        /**
+         * The attempts of the last connect to the device, null if it was never connected.
+         */
+        public synchronized List<Attempt> getAttempts(String address) {
+            return attempts.get(address);
+        }
+
+        synchronized void onConnect(String address, List<Attempt> tried, String strategy, int channel) {
+            attempts.put(address, Collections.unmodifiableList(new ArrayList<Attempt>(tried)));
+            if (strategy != null) {
+                strategies.put(address, strategy);
+            }
+            if (channel > 0) {
+                channels.put(address, channel);
+            }
+        }
+
+        /**
+         * A strategy failed to connect, so it is no longer tried first, nor
+         * is the channel it tried.
+         */
+        synchronized void onFailed(String address, String strategy) {
+            if (strategy.equals(strategies.get(address))) {
+                strategies.remove(address);
+            }
+            if (STRATEGY_CHANNEL.equals(strategy)) {
+                channels.remove(address);
+            }
+        }
+    }
+
+    /**
+     * Secure falling back to insecure, or insecure only.
+     */
+    public static List<String> defaultStrategies(boolean secure) {
+        return secure ? Arrays.asList(STRATEGY_SECURE, STRATEGY_INSECURE) : Arrays.asList(STRATEGY_INSECURE);
+    }
+
+    private final BluetoothDevice device;
+    private final List<String> strategies;
+    private final long timeout;
+    private final int channel;
+    private final Cache cache;
+    private final ScheduledExecutorService scheduler;
+    private final List<Attempt> attempts = new ArrayList<Attempt>();
+    private volatile BluetoothSocket socket;
+    private volatile String socketType;
+    private volatile boolean closed;
+    private volatile boolean expired;
+
+    /**
+     * An outgoing connection to device.
+     *
+     * @param strategies The strategies to try in order, the one in cache that worked last is moved first
+     * @param timeout    Milliseconds before the connect gives up, 0 to try every strategy
+     * @param channel    The channel strategy's RFCOMM channel, 0 for the one in cache or DEFAULT_CHANNEL
+     * @param scheduler  Runs the deadline, only used if timeout is set
+     */
+    public RfcommTransport(BluetoothDevice device, List<String> strategies, long timeout, int channel,
+                           Cache cache, ScheduledExecutorService scheduler) {
+        this.device = device;
+        this.strategies = new ArrayList<String>(strategies);
+        this.timeout = timeout;
+        this.channel = channel;
+        this.cache = cache;
+        this.scheduler = scheduler;
+
+        String known = cache.getStrategy(device.getAddress());
+        if (known != null && this.strategies.remove(known)) {
+            this.strategies.add(0, known);
+        }
+        this.socketType = this.strategies.get(0);
+    }
+
+    /**
+     * A connection accepted from a device, already connected.
+     */
+    public RfcommTransport(BluetoothSocket socket, String socketType) {
+        this.device = socket.getRemoteDevice();
+        this.socket = socket;
+        this.socketType = socketType;
+        this.strategies = Collections.emptyList();
+        this.timeout = 0;
+        this.channel = 0;
+        this.cache = null;
+        this.scheduler = null;
+    }
+
+    public void connect() throws IOException {
+        // Always cancel discovery because it will slow down a connection
+        BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
+
+        // close the socket being connected when the deadline passes
+        ScheduledFuture<?> deadline = null;
+        if (timeout > 0) {
+            deadline = scheduler.schedule(new Runnable() {
+                public void run() {
+                    expired = true;
+                    closeSocket();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        StringBuilder errors = new StringBuilder();
+        try {
+            for (String strategy : strategies) {
+                if (closed || expired) {
+                    break;
+                }
+                long start = System.currentTimeMillis();
+                try {
+                    int channel = connect(strategy);
+                    attempts.add(new Attempt(strategy, System.currentTimeMillis() - start, null));
+                    cache.onConnect(device.getAddress(), attempts, strategy, channel);
+                    Log.i(TAG, "Connected to " + device.getAddress() + " with " + strategy);
+                    return;
+                } catch (IOException e) {
+                    attempts.add(new Attempt(strategy, System.currentTimeMillis() - start, e.getMessage()));
+                    errors.append(errors.length() == 0 ? "" : "; ").append(strategy).append(": ").append(e.getMessage());
+                    closeSocket();
+                    if (!closed && !expired) {
+                        // the strategy itself failed, it was not cut short
+                        cache.onFailed(device.getAddress(), strategy);
+                    }
+                }
+            }
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+        }
+
+        cache.onConnect(device.getAddress(), attempts, null, 0);
+        if (expired) {
+            throw new IOException("Connect timed out after " + timeout + " ms (" + errors + ")");
+        }
+        throw new IOException(errors.length() == 0 ? "Connect canceled" : errors.toString());
+    }
+
+    /**
+     * Connect with one strategy.
+     *
+     * @return The RFCOMM channel the channel strategy connected on, or -1 for the SDP strategies
+     */
+    private int connect(String strategy) throws IOException {
+        BluetoothSocket tmp;
+        int channel = -1;
+        if (STRATEGY_SECURE.equals(strategy)) {
+            tmp = device.createRfcommSocketToServiceRecord(UUID_SPP);
+        } else if (STRATEGY_INSECURE.equals(strategy)) {
+            tmp = device.createInsecureRfcommSocketToServiceRecord(UUID_SPP);
+        } else if (STRATEGY_CHANNEL.equals(strategy)) {
+            // a channel given with the connect always wins over the one in cache
+            channel = this.channel > 0 ? this.channel : cache.getChannel(device.getAddress(), DEFAULT_CHANNEL);
+            tmp = createChannelSocket(channel);
+        } else {
+            throw new IOException("Unknown strategy " + strategy);
+        }
+
+        // close() from another thread closes the socket to abort the connect
+        socket = tmp;
+        socketType = strategy;
+        if (closed || expired) {
+            closeSocket();
+            throw new IOException("Connect canceled");
+        }
+
+        // This is a blocking call and will only return on a successful connection or an exception
+        tmp.connect();
+        return channel;
+    }
+
+    private BluetoothSocket createChannelSocket(int channel) throws IOException {
+        try {
+            Method createRfcommSocket = device.getClass().getMethod("createRfcommSocket", int.class);
+            return (BluetoothSocket) createRfcommSocket.invoke(device, channel);
+        } catch (Exception e) {
+            throw new IOException("Channel sockets are not supported: " + e);
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        BluetoothSocket current = socket;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void closeSocket() {
+        BluetoothSocket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of " + socketType + " socket failed", e);
+            }
+        }
+    }
+
+    public String getName() {
+        return device.getName() + " (" + socketType + ")";
+    }
+
+    public static class Factory implements SerialTransport.Factory {
+        private final BluetoothDevice device;
+        private final List<String> strategies;
+        private final long timeout;
+        private final int channel;
+        private final Cache cache;
+        private final ScheduledExecutorService scheduler;
+
+        /**
+         * Connect with a secure socket, falling back to an insecure one, or with an insecure socket only.
+         */
+        public Factory(BluetoothDevice device, boolean secure, Cache cache) {
+            this(device, defaultStrategies(secure), 0, 0, cache, null);
+        }
+
+        /**
+         * @param channel   The channel strategy's RFCOMM channel, 0 for the one in cache or DEFAULT_CHANNEL
+         * @param scheduler Runs the connect deadline, may be null if there is no timeout
+         * @throws IllegalArgumentException If there are no strategies or one is unknown.
+         */
+        public Factory(BluetoothDevice device, List<String> strategies, long timeout, int channel, Cache cache,
+                       ScheduledExecutorService scheduler) {
+            if (strategies.isEmpty()) {
+                throw new IllegalArgumentException("No connect strategies");
+            }
+            for (String strategy : strategies) {
+                if (!STRATEGY_SECURE.equals(strategy) && !STRATEGY_INSECURE.equals(strategy)
+                        && !STRATEGY_CHANNEL.equals(strategy)) {
+                    throw new IllegalArgumentException("Unknown connect strategy " + strategy);
+                }
+            }
+            this.device = device;
+            this.strategies = strategies;
+            if (timeout > 0 && scheduler == null) {
+                throw new IllegalArgumentException("A connect timeout needs a scheduler");
+            }
+            this.timeout = timeout;
+            this.channel = channel;
+            this.cache = cache;
+            this.scheduler = scheduler;
+        }
+
+        public String getAddress() {
+            return device.getAddress();
+        }
+
+        public SerialTransport create() throws IOException {
+            return new RfcommTransport(device, strategies, timeout, channel, cache, scheduler);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.megster.cordova;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream connection to a device. BluetoothSerialService reads and
+ * writes through this interface, so the same connection pipeline runs over
+ * RFCOMM on a phone, or over TCP or an in-memory pipe when testing without
+ * a device.
+ *
+ * A transport is one connection attempt: connect() is called once, and
+ * close() may be called from another thread at any time to abort connect()
+ * or a blocked read or write. A Factory creates a new transport for each
+ * attempt, including reconnects.
+ */
+public interface SerialTransport {
+
+    /**
+     * Creates the transports for one device.
+     */
+    interface Factory {
+
+        /**
+         * The id of the device, used as the connection key.
+         */
+        String getAddress();
+
+        /**
+         * Create an unconnected transport.
+         */
+        SerialTransport create() throws IOException;
+    }
+
+    /**
+     * Connect to the device, blocking until connected.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * A name for the device, for logging.
+     */
+    String getName();
+}
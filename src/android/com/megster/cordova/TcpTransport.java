@@ -0,0 +1,84 @@
+package com.megster.cordova;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A TCP connection, for driving the plugin from a device simulator on the
+ * development machine, e.g. one reachable from the Android emulator as
+ * tcp://10.0.2.2:port.
+ */
+public class TcpTransport implements SerialTransport {
+
+    public static final String SCHEME = "tcp://";
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private final String host;
+    private final int port;
+    private final Socket socket = new Socket();
+
+    public TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void connect() throws IOException {
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        // serial data is mostly small writes, don't hold them back
+        socket.setTcpNoDelay(true);
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    /**
+     * Creates connections to an address of the form tcp://host:port.
+     */
+    public static class Factory implements SerialTransport.Factory {
+        private final String address;
+        private final String host;
+        private final int port;
+
+        /**
+         * @throws IllegalArgumentException If the address is not tcp://host:port
+         */
+        public Factory(String address) {
+            int colon = address.lastIndexOf(':');
+            if (!address.startsWith(SCHEME) || colon <= SCHEME.length()) {
+                throw new IllegalArgumentException("Expected tcp://host:port, got " + address);
+            }
+            this.address = address;
+            this.host = address.substring(SCHEME.length(), colon);
+            try {
+                this.port = Integer.parseInt(address.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in " + address);
+            }
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public SerialTransport create() {
+            return new TcpTransport(host, port);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.megster.cordova;
+
+import org.apache.cordova.*;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The transactions waiting for a response from one device. While any are
+ * pending, received data is split into frames by the oldest transaction's
+ * decoder before it reaches the receive buffer or a subscriber. A frame
+ * completes the oldest transaction, or with a correlation, the transaction
+ * whose request carried the same id. Frames that match no transaction are
+ * passed to the unsolicited listener, data received while no transaction
+ * is pending is left alone. When the oldest transaction fails part way
+ * through a frame, its decoder finishes that frame first and passes it to
+ * the unsolicited listener, so the next response is framed from its start.
+ *
+ * Data is passed in on the reader thread, transactions are added on the
+ * WebCore thread and time out on the scheduler, so all state is guarded by
+ * this object's monitor.
+ */
+public class Transactions implements FrameDecoder.Listener {
+
+    public static final int DEFAULT_TIMEOUT = 5000;
+
+    /**
+     * Extracts the id that pairs a request with its response.
+     */
+    public interface Correlation {
+
+        /**
+         * @return The id in a request or response, or null if it has none.
+         */
+        String idOf(byte[] data);
+    }
+
+    /**
+     * Receives the outcome of a transaction, on the reader thread or the scheduler.
+     */
+    public interface Callback {
+
+        void onResponse(byte[] response);
+
+        void onError(String message, int code);
+    }
+
+    /**
+     * A request waiting for its response.
+     */
+    public static class Transaction {
+        final FrameDecoder decoder;
+        final Correlation correlation;
+        final String id;
+        final Callback callback;
+        final long startNanos = System.nanoTime();
+        ScheduledFuture<?> timeout;
+
+        Transaction(byte[] request, FrameDecoder decoder, Correlation correlation, Callback callback) {
+            this.decoder = decoder;
+            this.correlation = correlation;
+            this.id = correlation == null ? null : correlation.idOf(request);
+            this.callback = callback;
+        }
+    }
+
+    private final Deque<Transaction> pending = new ArrayDeque<Transaction>();
+    // a failed transaction whose decoder holds the start of a frame, it is fed before the pending ones
+    private Transaction draining;
+    private final ScheduledExecutorService scheduler;
+    private final ConnectionStats stats;
+    private final FrameDecoder.Listener unsolicited;
+
+    /**
+     * @param unsolicited Receives the frames that match no pending transaction
+     */
+    public Transactions(ScheduledExecutorService scheduler, ConnectionStats stats, FrameDecoder.Listener unsolicited) {
+        this.scheduler = scheduler;
+        this.stats = stats;
+        this.unsolicited = unsolicited;
+    }
+
+    /**
+     * Create a correlation from the options passed from JavaScript:
+     *
+     *   {offset: 1, length: 2}  the bytes at offset in the request and response
+     *   {pattern: "^#(\\d+)"}   the first group of a regular expression, matched against the text
+     *
+     * @throws IllegalArgumentException If the options are not valid.
+     */
+    public static Correlation correlationFromOptions(JSONObject options, Charset charset) {
+        String pattern = options.optString("pattern", null);
+        if (pattern != null) {
+            return new PatternCorrelation(Pattern.compile(pattern), charset);
+        }
+        int offset = options.optInt("offset", 0);
+        int length = options.optInt("length", 0);
+        if (offset < 0 || length <= 0) {
+            throw new IllegalArgumentException("correlation needs a pattern, or an offset and length");
+        }
+        return new ByteCorrelation(offset, length);
+    }
+
+    /**
+     * Wait for the response to request. Call before writing the request, so
+     * a fast response is not missed.
+     *
+     * @param decoder     Finds the end of the response
+     * @param correlation Pairs the response with the request, null to take the next response
+     * @param charset     Decodes the response to a String, null to return the bytes
+     * @param timeout     Milliseconds to wait for the response
+     * @return The transaction, to pass to fail() if the request can't be sent
+     */
+    public Transaction add(byte[] request, FrameDecoder decoder, Correlation correlation, final Charset charset,
+                           long timeout, final CallbackContext callback) {
+        return add(request, decoder, correlation, timeout, new Callback() {
+            public void onResponse(byte[] response) {
+                PluginResult result = charset == null
+                        ? new PluginResult(PluginResult.Status.OK, response)
+                        : new PluginResult(PluginResult.Status.OK, new String(response, charset));
+                callback.sendPluginResult(result);
+            }
+
+            public void onError(String message, int code) {
+                error(callback, message, code);
+            }
+        });
+    }
+
+    /**
+     * Wait for the response to request, reporting to callback instead of JavaScript.
+     */
+    public synchronized Transaction add(byte[] request, FrameDecoder decoder, Correlation correlation, long timeout,
+                                        Callback callback) {
+        final Transaction transaction = new Transaction(request, decoder, correlation, callback);
+        pending.add(transaction);
+        transaction.timeout = scheduler.schedule(new Runnable() {
+            public void run() {
+                if (fail(transaction, "Timed out.", 408)) {
+                    stats.transactionTimeouts.incrementAndGet();
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        return transaction;
+    }
+
+    public synchronized boolean hasPending() {
+        return !pending.isEmpty() || draining != null;
+    }
+
+    /**
+     * Pass received data to the pending transactions until none are left.
+     *
+     * @return The number of bytes used, the rest are not part of a response.
+     */
+    public synchronized int onData(byte[] data, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        // a byte at a time, so the data after the last response is left for the subscriber
+        while (i < end && (draining != null || !pending.isEmpty())) {
+            Transaction head = draining != null ? draining : pending.peek();
+            head.decoder.decode(data, i++, 1, this);
+        }
+        return i - offset;
+    }
+
+    // Called from onData with the monitor held
+    public void onFrame(byte[] frame) {
+        Transaction oldest = draining != null ? draining : pending.peek();
+        Transaction match = null;
+        if (oldest == draining) {
+            // the rest of a frame that was started before its transaction failed
+            draining = null;
+            if (oldest.correlation == null) {
+                unsolicited.onFrame(frame);
+                return;
+            }
+        }
+        if (oldest.correlation == null) {
+            match = oldest;
+        } else {
+            String id = oldest.correlation.idOf(frame);
+            for (Transaction transaction : pending) {
+                if (id != null && id.equals(transaction.id)) {
+                    match = transaction;
+                    break;
+                }
+            }
+        }
+
+        if (match == null) {
+            unsolicited.onFrame(frame);
+            return;
+        }
+
+        pending.remove(match);
+        match.timeout.cancel(false);
+        match.callback.onResponse(frame);
+        stats.transactionTime.record((System.nanoTime() - match.startNanos) / 1000);
+    }
+
+    /**
+     * Fail a pending transaction.
+     *
+     * @return false if it was no longer pending
+     */
+    public synchronized boolean fail(Transaction transaction, String message, int code) {
+        if (!remove(transaction)) {
+            return false;
+        }
+        transaction.timeout.cancel(false);
+        transaction.callback.onError(message, code);
+        return true;
+    }
+
+    /**
+     * Stop waiting for a response without calling back, when the request was not sent.
+     *
+     * @return false if it was no longer pending
+     */
+    public synchronized boolean cancel(Transaction transaction) {
+        if (!remove(transaction)) {
+            return false;
+        }
+        transaction.timeout.cancel(false);
+        return true;
+    }
+
+    // Take a transaction out of the queue, keeping its decoder if it holds the start of a frame
+    private boolean remove(Transaction transaction) {
+        boolean head = transaction == pending.peek();
+        if (!pending.remove(transaction)) {
+            return false;
+        }
+        if (head && draining == null && transaction.decoder.isPartial()) {
+            draining = transaction;
+        }
+        return true;
+    }
+
+    /**
+     * Fail every pending transaction, when the connection is gone.
+     */
+    public synchronized void failAll(String message, int code) {
+        draining = null;
+        Iterator<Transaction> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            Transaction transaction = iterator.next();
+            iterator.remove();
+            transaction.timeout.cancel(false);
+            transaction.callback.onError(message, code);
+        }
+    }
+
+    private static void error(CallbackContext callback, String message, int code) {
+        try {
+            JSONObject result = new JSONObject();
+            result.put("message", message);
+            result.put("code", code);
+            callback.error(result);
+        } catch (JSONException e) {
+            callback.error(message);
+        }
+    }
+
+    /**
+     * The id is length bytes at offset, as a string of ISO-8859-1 characters so ids compare by value.
+     */
+    static class ByteCorrelation implements Correlation {
+        private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+        private final int offset;
+        private final int length;
+
+        ByteCorrelation(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String idOf(byte[] data) {
+            if (data.length < offset + length) {
+                return null;
+            }
+            return new String(Arrays.copyOfRange(data, offset, offset + length), LATIN_1);
+        }
+    }
+
+    /**
+     * The id is the first group of a regular expression found in the text.
+     */
+    static class PatternCorrelation implements Correlation {
+        private final Pattern pattern;
+        private final Charset charset;
+
+        PatternCorrelation(Pattern pattern, Charset charset) {
+            if (pattern.matcher("").groupCount() < 1) {
+                throw new IllegalArgumentException("correlation pattern needs a group");
+            }
+            this.pattern = pattern;
+            this.charset = charset;
+        }
+
+        public String idOf(byte[] data) {
+            Matcher matcher = pattern.matcher(new String(data, charset));
+            return matcher.find() ? matcher.group(1) : null;
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.megster.cordova;
+
+import org.apache.cordova.*;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A large write streamed to one device in chunks, from a file read here or
+ * from data pushed from JavaScript a piece at a time, so the whole payload
+ * never crosses the bridge at once. At most window chunks are in flight: a
+ * chunk is in flight until the writer thread has sent it or, with an ack,
+ * until the device has acknowledged it. Chunks can be paced interval
+ * milliseconds apart for devices that can't keep up with the link.
+ *
+ * All state is confined to the scheduler thread. Calls from JavaScript, and
+ * the sent and acknowledged notifications from the writer and reader
+ * threads, are posted to it, so chunks are queued there too. A file is read
+ * on a thread of its own, which pushes the data the way JavaScript does, so
+ * a slow read never holds up the scheduler.
+ */
+public class Transfer {
+
+    public static final int STATE_RUNNING = 0;
+    public static final int STATE_DONE = 1;
+    public static final int STATE_CANCELED = 2;
+    public static final int STATE_FAILED = 3;
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // retry a chunk this soon when the write queue was full
+    private static final long RETRY_DELAY = 10;
+    // at most one progress event this often, the last one is always sent
+    private static final long PROGRESS_INTERVAL = 100;
+
+    /**
+     * Receives the progress of a transfer, on the scheduler thread.
+     */
+    public interface Listener {
+
+        void onProgress(Transfer transfer);
+
+        /**
+         * The transfer is done or was canceled.
+         */
+        void onComplete(Transfer transfer);
+
+        void onError(Transfer transfer, String message, int code);
+    }
+
+    private final int id;
+    private final String address;
+    private final BluetoothSerialService service;
+    private final Transactions transactions;
+    private final ScheduledExecutorService scheduler;
+    private final Listener listener;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int window = DEFAULT_WINDOW;
+    private long interval;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private JSONObject ackFraming;
+    private long ackTimeout;
+
+    // the data is pushed into buffers from JavaScript, or by the input thread
+    private InputStream input;
+    private final Semaphore inputRoom = new Semaphore(0);
+    private boolean inputWaiting;
+    private final Deque<byte[]> buffers = new ArrayDeque<byte[]>();
+    private int bufferOffset;   // bytes of the first buffer already taken
+    private int buffered;
+    private final List<CallbackContext> writers = new ArrayList<CallbackContext>();
+    private boolean ended;
+
+    private int state = STATE_RUNNING;
+    private final Deque<Chunk> inFlight = new ArrayDeque<Chunk>();
+    private Chunk retry;
+    private ScheduledFuture<?> wakeup;
+    private long nextChunkNanos;
+    private long total = -1;
+    private long sent;
+    private long acknowledged;
+    private long startMillis;
+    private long lastProgress;
+
+    public Transfer(int id, String address, BluetoothSerialService service, Transactions transactions,
+                    ScheduledExecutorService scheduler, Listener listener) {
+        this.id = id;
+        this.address = address;
+        this.service = service;
+        this.transactions = transactions;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @param chunkSize Bytes per chunk, the last chunk may be shorter
+     * @param window    Chunks in flight at once
+     * @param interval  Milliseconds from one chunk to the next, 0 to send them as fast as the window allows
+     * @throws IllegalArgumentException If the options are out of range.
+     */
+    public void setChunking(int chunkSize, int window, long interval) {
+        if (chunkSize < 1 || window < 1 || interval < 0) {
+            throw new IllegalArgumentException("Invalid chunkSize, window or interval");
+        }
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.interval = interval;
+    }
+
+    /**
+     * Wait for the device to acknowledge each chunk.
+     *
+     * @param framing Frame decoder options, as for FrameDecoders.fromOptions, that find the end of an ack
+     * @param timeout Milliseconds to wait for an ack before the transfer fails
+     * @throws IllegalArgumentException If the options are not valid.
+     */
+    public void setAck(JSONObject framing, long timeout) {
+        FrameDecoders.fromOptions(framing);
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("ackTimeout must be positive");
+        }
+        this.ackFraming = framing;
+        this.ackTimeout = timeout;
+    }
+
+    /**
+     * Send the contents of input rather than data pushed with write().
+     *
+     * @param size The length of the input if known, -1 otherwise
+     */
+    public void setInput(InputStream input, long size) {
+        this.input = input;
+        this.total = size;
+    }
+
+    /**
+     * @param total     Bytes that will be pushed with write(), -1 if unknown
+     * @param bufferSize Bytes buffered before write() waits for chunks to be sent
+     */
+    public void setSize(long total, int bufferSize) {
+        if (bufferSize < chunkSize) {
+            throw new IllegalArgumentException("bufferSize must be at least chunkSize");
+        }
+        this.total = total;
+        this.bufferSize = bufferSize;
+    }
+
+    public void start() {
+        post(new Runnable() {
+            public void run() {
+                startMillis = System.currentTimeMillis();
+                pump();
+            }
+        });
+        if (input != null) {
+            new InputThread().start();
+        }
+    }
+
+    /**
+     * Push the next piece of the data. callback is called once there is
+     * room in the buffer for more, wait for it before pushing again.
+     */
+    public void write(final byte[] data, final CallbackContext callback) {
+        post(new Runnable() {
+            public void run() {
+                if (state != STATE_RUNNING) {
+                    error(callback, "Transfer is not running.", 410);
+                } else if (input != null || ended) {
+                    error(callback, "Transfer does not accept more data.", 400);
+                } else {
+                    if (data.length > 0) {
+                        buffers.add(data);
+                        buffered += data.length;
+                    }
+                    writers.add(callback);
+                    pump();
+                }
+            }
+        });
+    }
+
+    /**
+     * No more data will be pushed, the transfer completes once what is buffered is sent.
+     */
+    public void end() {
+        post(new Runnable() {
+            public void run() {
+                ended = true;
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Stop sending. Chunks already in the write queue are still sent.
+     */
+    public void cancel() {
+        post(new Runnable() {
+            public void run() {
+                if (finish(STATE_CANCELED)) {
+                    listener.onComplete(Transfer.this);
+                }
+            }
+        });
+    }
+
+    public void fail(final String message, final int code) {
+        post(new Runnable() {
+            public void run() {
+                failNow(message, code);
+            }
+        });
+    }
+
+    /**
+     * The progress as sent to JavaScript.
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("transfer", id);
+        json.put("id", address);
+        json.put("state", state == STATE_RUNNING ? "running" : state == STATE_DONE ? "done"
+                : state == STATE_CANCELED ? "canceled" : "failed");
+        json.put("sent", sent);
+        if (ackFraming != null) {
+            json.put("acknowledged", acknowledged);
+        }
+        if (total >= 0) {
+            json.put("total", total);
+        }
+        json.put("elapsed", startMillis == 0 ? 0 : System.currentTimeMillis() - startMillis);
+        return json;
+    }
+
+    // Queue chunks until the window is full, the data runs out or the next chunk is due later
+    private void pump() {
+        wakeup = null;
+        while (state == STATE_RUNNING && inFlight.size() < window) {
+            long wait = nextChunkNanos - System.nanoTime();
+            if (interval > 0 && wait > 0) {
+                schedule(wait, TimeUnit.NANOSECONDS);
+                break;
+            }
+
+            Chunk chunk = retry;
+            retry = null;
+            if (chunk == null) {
+                byte[] data = nextChunk();
+                if (data == null) {
+                    break;
+                }
+                chunk = new Chunk(data);
+            }
+
+            // wait for the ack before writing, so a fast ack is not missed
+            if (ackFraming != null) {
+                chunk.transaction = transactions.add(chunk.data, FrameDecoders.fromOptions(ackFraming), null,
+                        ackTimeout, chunk);
+            }
+            if (!service.write(address, chunk.data, chunk, BluetoothSerialService.LANE_BULK)) {
+                if (chunk.transaction != null) {
+                    transactions.cancel(chunk.transaction);
+                    chunk.transaction = null;
+                }
+                if (service.getState(address) != BluetoothSerialService.STATE_CONNECTED) {
+                    failNow("Not connected.", 404);
+                    return;
+                }
+                retry = chunk;
+                schedule(RETRY_DELAY, TimeUnit.MILLISECONDS);
+                break;
+            }
+            inFlight.add(chunk);
+            nextChunkNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+        }
+
+        if (state != STATE_RUNNING) {
+            return;
+        }
+        if (buffered < bufferSize) {
+            for (CallbackContext writer : writers) {
+                writer.success();
+            }
+            writers.clear();
+            if (inputWaiting) {
+                inputWaiting = false;
+                inputRoom.release();
+            }
+        }
+        if (ended && inFlight.isEmpty() && retry == null && buffered == 0) {
+            finish(STATE_DONE);
+            listener.onComplete(this);
+        }
+    }
+
+    /**
+     * The next chunk of the data, or null if there is none yet. A short
+     * chunk is only sent at the end of the data.
+     */
+    private byte[] nextChunk() {
+        if (buffered < chunkSize && !(ended && buffered > 0)) {
+            return null;
+        }
+        byte[] data = new byte[Math.min(chunkSize, buffered)];
+        int length = 0;
+        while (length < data.length) {
+            byte[] buffer = buffers.peek();
+            int count = Math.min(data.length - length, buffer.length - bufferOffset);
+            System.arraycopy(buffer, bufferOffset, data, length, count);
+            length += count;
+            bufferOffset += count;
+            if (bufferOffset == buffer.length) {
+                buffers.remove();
+                bufferOffset = 0;
+            }
+        }
+        buffered -= length;
+        return data;
+    }
+
+    // A chunk is done once it is sent and, with an ack, acknowledged
+    private void onChunkDone(Chunk chunk) {
+        if (state != STATE_RUNNING || !inFlight.remove(chunk)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastProgress >= PROGRESS_INTERVAL) {
+            lastProgress = now;
+            listener.onProgress(this);
+        }
+        pump();
+    }
+
+    private void failNow(String message, int code) {
+        if (finish(STATE_FAILED)) {
+            listener.onError(this, message, code);
+        }
+    }
+
+    /**
+     * Leave the running state, releasing the input, pending acks and waiting writers.
+     *
+     * @return false if the transfer had already finished
+     */
+    private boolean finish(int newState) {
+        if (state != STATE_RUNNING) {
+            return false;
+        }
+        state = newState;
+        if (wakeup != null) {
+            wakeup.cancel(false);
+            wakeup = null;
+        }
+        for (Chunk chunk : inFlight) {
+            if (chunk.transaction != null) {
+                transactions.cancel(chunk.transaction);
+            }
+        }
+        inFlight.clear();
+        retry = null;
+        buffers.clear();
+        buffered = 0;
+        for (CallbackContext writer : writers) {
+            error(writer, "Transfer is not running.", 410);
+        }
+        writers.clear();
+        if (input != null) {
+            try {
+                // a read in progress fails, and the input thread stops
+                input.close();
+            } catch (IOException e) {
+                // nothing more to read anyway
+            }
+            inputRoom.release();
+        }
+        return true;
+    }
+
+    private void schedule(long delay, TimeUnit unit) {
+        try {
+            wakeup = scheduler.schedule(new Runnable() {
+                public void run() {
+                    pump();
+                }
+            }, delay, unit);
+        } catch (RejectedExecutionException e) {
+            // the plugin is being destroyed
+        }
+    }
+
+    /**
+     * @return false if the plugin is being destroyed
+     */
+    private boolean post(Runnable runnable) {
+        try {
+            scheduler.execute(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private static void error(CallbackContext callback, String message, int code) {
+        try {
+            JSONObject result = new JSONObject();
+            result.put("message", message);
+            result.put("code", code);
+            callback.error(result);
+        } catch (JSONException e) {
+            callback.error(message);
+        }
+    }
+
+    /**
+     * Reads the input and pushes it the way write() does, waiting while the
+     * buffer is full. Closing the input stops it.
+     */
+    private class InputThread extends Thread {
+
+        InputThread() {
+            super("Transfer-" + id);
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    byte[] data = new byte[chunkSize];
+                    int length = input.read(data);
+                    if (length < 0) {
+                        end();
+                        return;
+                    }
+                    final byte[] piece = length == data.length ? data : Arrays.copyOf(data, length);
+                    boolean posted = post(new Runnable() {
+                        public void run() {
+                            if (state == STATE_RUNNING) {
+                                buffers.add(piece);
+                                buffered += piece.length;
+                                inputWaiting = true;
+                                pump();
+                            }
+                        }
+                    });
+                    if (!posted) {
+                        return;
+                    }
+                    inputRoom.acquire();
+                }
+            } catch (IOException e) {
+                fail("Unable to read the data: " + e.getMessage(), 500);
+            } catch (InterruptedException e) {
+                // nothing interrupts it
+            }
+        }
+    }
+
+    /**
+     * One chunk of the transfer, the token of its write. Its notifications
+     * arrive on the writer and reader threads and are posted to the scheduler.
+     */
+    public class Chunk implements Transactions.Callback {
+        final byte[] data;
+        Transactions.Transaction transaction;
+        private boolean written;
+        private boolean acked;
+
+        Chunk(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * The writer thread has sent the chunk.
+         */
+        public void onSent() {
+            post(new Runnable() {
+                public void run() {
+                    written = true;
+                    sent += data.length;
+                    if (ackFraming == null) {
+                        acknowledged = sent;
+                        onChunkDone(Chunk.this);
+                    } else if (acked) {
+                        onChunkDone(Chunk.this);
+                    }
+                }
+            });
+        }
+
+        public void onWriteFailed() {
+            fail("Connection lost.", 410);
+        }
+
+        public void onResponse(byte[] response) {
+            post(new Runnable() {
+                public void run() {
+                    acked = true;
+                    acknowledged += data.length;
+                    if (written) {
+                        onChunkDone(Chunk.this);
+                    }
+                }
+            });
+        }
+
+        public void onError(String message, int code) {
+            fail(code == 408 ? "Timed out waiting for an ack." : message, code);
+        }
+    }
+}
@@ -100,11 +100,12 @@
     NSLog(@"write");
     
     CDVPluginResult *pluginResult = nil;
-    NSString *message = [command.arguments objectAtIndex:0];
+    id message = [command.arguments objectAtIndex:0];
 
-    if (message != nil) {
+    if (message != nil && message != [NSNull null]) {
         
-        NSData *d = [message dataUsingEncoding:NSUTF8StringEncoding];
+        // binary data arrives as NSData, strings are sent as UTF-8
+        NSData *d = [message isKindOfClass:[NSData class]] ? message : [message dataUsingEncoding:NSUTF8StringEncoding];
         
         [_bleShield write:d];
         
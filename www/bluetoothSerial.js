@@ -1,24 +1,42 @@
+// cordova sends ArrayBuffers to the native side as binary, so convert anything else to one
+var toArrayBuffer = function (data) {
+    if (data instanceof ArrayBuffer) {
+        return data;
+    } else if (data.buffer instanceof ArrayBuffer) {
+        return data.buffer.slice(data.byteOffset, data.byteOffset + data.byteLength);
+    } else {
+        return new Uint8Array(data).buffer;
+    }
+};
+
 module.exports = {
 
-        connect: function (macAddress, success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "connect", [macAddress]);
+        // Android - options {reconnect: {maxAttempts, baseDelay, maxDelay, jitter}} reconnects when the connection is lost
+        // Android - options {strategies: ["secure", "insecure", "channel"], connectTimeout, channel} choose how to connect
+        // Android - options {idleTimeout, heartbeat: {data, reply, interval}} drop a link that has gone quiet
+        // Android - macAddress may be tcp://host:port to connect to a device simulator during development
+        connect: function (macAddress, success, failure, options) {
+            cordova.exec(success, failure, "BluetoothSerial", "connect", [macAddress, options]);
         },
 
         // Android only - see http://goo.gl/1mFjZY
-        connectInsecure: function (macAddress, success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "connectInsecure", [macAddress]);
+        connectInsecure: function (macAddress, success, failure, options) {
+            cordova.exec(success, failure, "BluetoothSerial", "connectInsecure", [macAddress, options]);
         },
 
-        disconnect: function (success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "disconnect", []);
+        // Android - disconnects the device with id, or every device if id is omitted
+        disconnect: function (success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "disconnect", [id]);
         },
 
         isDiscovering: function (success, failure) {
             cordova.exec(success, failure, "BluetoothSerial", "isDiscovering", []);
         },
 
-        startDiscovery: function (success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "startDiscovery", []);
+        // Android - options {name, address, deviceClass, minRssi} filter devices natively,
+        // {report: "each" | "batch" | "final", interval} choose how they are reported, see the README
+        startDiscovery: function (success, failure, options) {
+            cordova.exec(success, failure, "BluetoothSerial", "startDiscovery", [options || null]);
         },
 
         stopDiscovery: function (success, failure) {
@@ -33,6 +51,16 @@ module.exports = {
             cordova.exec(success, failure, "BluetoothSerial", "pair", [address]);
         },
 
+        // Android only - calls success with each change to a device's bond state, name or class
+        subscribeDeviceChanges: function (success, failure) {
+            cordova.exec(success, failure, "BluetoothSerial", "subscribeDeviceChanges", []);
+        },
+
+        // removes the device changes subscription
+        unsubscribeDeviceChanges: function (success, failure) {
+            cordova.exec(success, failure, "BluetoothSerial", "unsubscribeDeviceChanges", []);
+        },
+
         // list bound devices
         list: function (success, failure) {
             cordova.exec(success, failure, "BluetoothSerial", "list", []);
@@ -42,43 +70,153 @@ module.exports = {
             cordova.exec(success, failure, "BluetoothSerial", "isEnabled", []);
         },
 
-        isConnected: function (success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "isConnected", []);
+        // the optional id on the following functions selects the device when several are connected (Android only)
+        // without an id the most recently connected device is used
+
+        isConnected: function (success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "isConnected", [id]);
         },
 
         // the number of bytes of data available to read is passed to the success function
-        available: function (success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "available", []);
+        available: function (success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "available", [id]);
         },
 
         // read all the data in the buffer
-        read: function (success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "read", []);
+        read: function (success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "read", [id]);
         },
 
         // reads the data in the buffer up to and including the delimiter
-        readUntil: function (delimiter, success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "readUntil", [delimiter]);
+        // Android - delimiter can be an array of alternatives, e.g. ["\r\n", "\n"]
+        readUntil: function (delimiter, success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "readUntil", [delimiter, id]);
+        },
+
+        // writes data to the bluetooth serial port
+        // data can be a string, ArrayBuffer, typed array or array of byte values
+        // strings are encoded with charset, default UTF-8 (Android only)
+        // Android - charset may be an options object {charset, priority}, priority "control" jumps the queue
+        write: function (data, success, failure, charset, id) {
+            var priority = null;
+            if (charset && typeof charset === 'object') {
+                priority = charset.priority;
+                charset = charset.charset;
+            }
+            if (typeof data === 'string') {
+                cordova.exec(success, failure, "BluetoothSerial", "write", [data, charset || "UTF-8", id, priority]);
+            } else {
+                cordova.exec(success, failure, "BluetoothSerial", "write", [toArrayBuffer(data), null, id, priority]);
+            }
+        },
+
+        // Android only - writes data and calls success with the response
+        // options {delimiter, framing, correlation, timeout, charset, priority}, see the README
+        transact: function (data, options, success, failure, id) {
+            options = options || {};
+            if (typeof data === 'string') {
+                cordova.exec(success, failure, "BluetoothSerial", "transact", [data, options.charset || "UTF-8", options, id]);
+            } else {
+                cordova.exec(success, failure, "BluetoothSerial", "transact", [toArrayBuffer(data), null, options, id]);
+            }
+        },
+
+        // Android only - streams a large write in chunks, progress is called with {transfer, state, sent, ...}
+        // until the transfer is done, options {chunkSize, window, interval, ack, ackTimeout, path, size, bufferSize}
+        startTransfer: function (options, progress, failure, id) {
+            cordova.exec(progress, failure, "BluetoothSerial", "startTransfer", [options || {}, id]);
+        },
+
+        // Android only - pushes the next piece of a transfer's data, wait for success before pushing more
+        writeTransfer: function (transfer, data, success, failure, charset) {
+            if (typeof data === 'string') {
+                cordova.exec(success, failure, "BluetoothSerial", "writeTransfer", [transfer, data, charset || "UTF-8"]);
+            } else {
+                cordova.exec(success, failure, "BluetoothSerial", "writeTransfer", [transfer, toArrayBuffer(data), null]);
+            }
         },
 
-        // writes data to the bluetooth serial port - data must be a string
-        write: function (data, success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "write", [data]);
+        // Android only - no more data will be pushed, the transfer completes once it is sent
+        endTransfer: function (transfer, success, failure) {
+            cordova.exec(success, failure, "BluetoothSerial", "endTransfer", [transfer]);
+        },
+
+        // Android only - stops a transfer
+        cancelTransfer: function (transfer, success, failure) {
+            cordova.exec(success, failure, "BluetoothSerial", "cancelTransfer", [transfer]);
+        },
+
+        // Android only - sets the write queueSize, coalesceWindow / coalesceSize for merging small writes
+        // and the chunkSize bulk writes are split into
+        configureWrite: function (options, success, failure) {
+            cordova.exec(success, failure, "BluetoothSerial", "configureWrite", [options]);
+        },
+
+        // Android only - sets the readSize of the buffer each new connection reads into
+        configureRead: function (options, success, failure) {
+            cordova.exec(success, failure, "BluetoothSerial", "configureRead", [options]);
+        },
+
+        // Android only - sends writes held for coalescing immediately
+        flush: function (success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "flush", [id]);
         },
 
         // calls the success callback when new data is available
-        subscribe: function (delimiter, success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "subscribe", [delimiter]);
+        // Android - with options {maxFrames, interval} the callback gets an array of frames
+        // Android - with options {framing: {type: ...}} the callback gets an ArrayBuffer per binary frame
+        subscribe: function (delimiter, success, failure, options, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "subscribe", [delimiter, options, id]);
         },
 
         // removes data subscription
-        unsubscribe: function (success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "unsubscribe", []);
+        unsubscribe: function (success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "unsubscribe", [id]);
+        },
+
+        // Android only - calls the success callback with an ArrayBuffer each time data is received
+        subscribeRawData: function (success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "subscribeRawData", [id]);
+        },
+
+        // removes raw data subscription
+        unsubscribeRawData: function (success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "unsubscribeRawData", [id]);
         },
 
         // clears the data buffer
-        clear: function (success, failure) {
-            cordova.exec(success, failure, "BluetoothSerial", "clear", []);
+        clear: function (success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "clear", [id]);
+        },
+
+        // Android only - sets the receive buffer maxSize, overflow policy, and highWaterMark and lowWaterMark to pause reading
+        configureBuffer: function (options, success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "configureBuffer", [options, id]);
+        },
+
+        // Android only - calls the success callback with {type: ...} objects for connection events
+        subscribeEvents: function (success, failure) {
+            cordova.exec(success, failure, "BluetoothSerial", "subscribeEvents", []);
+        },
+
+        // removes event subscription
+        unsubscribeEvents: function (success, failure) {
+            cordova.exec(success, failure, "BluetoothSerial", "unsubscribeEvents", []);
+        },
+
+        // Android only - passes throughput and latency stats to the success callback, for every device if id is omitted
+        getStats: function (success, failure, id) {
+            cordova.exec(success, failure, "BluetoothSerial", "getStats", [id]);
+        },
+
+        // Android only - calls the success callback with the stats of every device every interval milliseconds
+        subscribeStats: function (interval, success, failure) {
+            cordova.exec(success, failure, "BluetoothSerial", "subscribeStats", [interval]);
+        },
+
+        // removes stats subscription
+        unsubscribeStats: function (success, failure) {
+            cordova.exec(success, failure, "BluetoothSerial", "unsubscribeStats", []);
         },
 
         // reads the RSSI of the *connected* peripherial